@@ -0,0 +1,57 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+// The benchmarked classes don't depend on the Android framework, so they are compiled from the
+// geekdroid sources and benchmarked on the JVM.
+sourceSets {
+    main {
+        java {
+            srcDir("../geekdroid/src/main/java")
+            include(
+                "com/geekorum/geekdroid/arch/PagingRequestHelper.java",
+                "com/geekorum/geekdroid/arch/PagingRequestMetrics.java",
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.annotation)
+}
+
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // report allocation rate
+    profilers.add("gc")
+}
@@ -0,0 +1,133 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.benchmark;
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper;
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link PagingRequestHelper#runIfNotRunning(RequestType,
+ * PagingRequestHelper.Request)} followed by the recording of the result, with several concurrent
+ * callers and listeners.
+ * <p>
+ * There are only 3 request types, so with more callers some of them share a type and their calls
+ * can be rejected while another one is running. The secondary results {@code run} and
+ * {@code rejected} report the throughput of each kind of call separately.
+ * <p>
+ * Run with {@code ./gradlew :geekdroid-benchmark:jmh}, the gc profiler reports the allocation
+ * rate.
+ */
+@SuppressWarnings("removal")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PagingRequestHelperBenchmark {
+
+    @Param({"0", "1", "16"})
+    public int listenersCount;
+
+    private PagingRequestHelper helper;
+
+    private static final PagingRequestHelper.Request SUCCESSFUL_REQUEST =
+            PagingRequestHelper.Request.Callback::recordSuccess;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        helper = new PagingRequestHelper(Runnable::run);
+        for (int i = 0; i < listenersCount; i++) {
+            helper.addListener(blackhole::consume);
+        }
+    }
+
+    /**
+     * Each caller thread uses the request type of its thread index, as long as there are enough
+     * of them.
+     */
+    @State(Scope.Thread)
+    public static class CallerState {
+        private static final RequestType[] TYPES = RequestType.values();
+        RequestType type;
+
+        @Setup
+        public void setUp(ThreadParams threadParams) {
+            type = TYPES[threadParams.getThreadIndex() % TYPES.length];
+        }
+    }
+
+    /**
+     * Counts the calls which ran the request and the ones rejected, per caller thread.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class CallCounters {
+        public long run;
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            run = 0;
+            rejected = 0;
+        }
+    }
+
+    private void runAndRecord(CallerState caller, CallCounters counters) {
+        if (helper.runIfNotRunning(caller.type, SUCCESSFUL_REQUEST)) {
+            counters.run++;
+        } else {
+            counters.rejected++;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void runAndRecord1Caller(CallerState caller, CallCounters counters) {
+        runAndRecord(caller, counters);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void runAndRecord4Callers(CallerState caller, CallCounters counters) {
+        runAndRecord(caller, counters);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void runAndRecord16Callers(CallerState caller, CallCounters counters) {
+        runAndRecord(caller, counters);
+    }
+}
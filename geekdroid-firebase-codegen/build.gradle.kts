@@ -0,0 +1,70 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+plugins {
+    kotlin("jvm")
+    `maven-publish`
+}
+
+kotlin {
+    jvmToolchain(17)
+
+    sourceSets {
+        named("test") {
+            // the generated codecs are compiled in the tests with the runtime API of geekdroid-firebase,
+            // built against stubs of the Firestore classes
+            kotlin.srcDir("../geekdroid-firebase/src/main/java")
+            kotlin.include(
+                "com/geekorum/geekdroid/firebase/codegen/**",
+                "com/geekorum/geekdroid/firebase/firestore/DocumentCodec.kt",
+                "com/google/firebase/**",
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.ksp.symbol.processing.api)
+
+    testImplementation(kotlin("test-junit"))
+    testImplementation(libs.kotlin.compile.testing.ksp)
+}
+
+publishing {
+    publications {
+        register<MavenPublication>("release") {
+            from(components["java"])
+            artifactId = "geekdroid-firebase-codegen"
+            pom {
+                name.set("Geekdroid-Firebase-Codegen")
+                description.set("KSP processor generating Firestore DocumentCodec for Geekdroid-Firebase")
+                licenses {
+                    license {
+                        name.set("GPL-3.0-or-later")
+                        url.set("https://www.gnu.org/licenses/gpl-3.0.html")
+                        distribution.set("repo")
+                    }
+                }
+                inceptionYear.set("2017")
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.codegen
+
+/**
+ * Write the source of a DocumentCodec
+ */
+internal class CodecWriter(
+    private val packageName: String,
+    private val codecName: String,
+    private val typeName: String,
+    private val fields: List<Field>,
+    private val throwOnExtraProperties: Boolean = false,
+) {
+    private val builder = StringBuilder()
+
+    fun write(): String {
+        line("// Generated by geekdroid-firebase-codegen. Do not edit.")
+        if (packageName.isNotEmpty()) {
+            line("package $packageName")
+        }
+        line()
+        line("class $codecName : com.geekorum.geekdroid.firebase.firestore.DocumentCodec<$typeName> {")
+        line()
+        line("    override fun decode(document: com.google.firebase.firestore.DocumentSnapshot): $typeName? {")
+        line("        if (!document.exists()) {")
+        line("            return null")
+        line("        }")
+        if (throwOnExtraProperties) {
+            // DocumentSnapshot has no cheaper way to get the field names: this converts the whole data
+            line("        if (!FIELD_NAMES.containsAll(document.data.orEmpty().keys)) {")
+            line("            return fallback(document)")
+            line("        }")
+        }
+        val constructorFields = fields.filter { it.isConstructorParameter }
+        val mutableFields = fields.filterNot { it.isConstructorParameter }
+        constructorFields.forEachIndexed { idx, field ->
+            writeValue(field, "v$idx", "        ")
+        }
+        val arguments = constructorFields.withIndex().joinToString(", ") { (idx, field) -> "`${field.name}` = v$idx" }
+        line("        val result = $typeName($arguments)")
+        mutableFields.forEachIndexed { idx, field ->
+            line("        if (document.contains(${fieldPath(field)})) {")
+            writeValue(field, "m$idx", "            ")
+            line("            result.`${field.name}` = m$idx")
+            line("        }")
+        }
+        line("        return result")
+        line("    }")
+        line()
+        line("    private fun fallback(document: com.google.firebase.firestore.DocumentSnapshot): $typeName? {")
+        line("        return document.toObject($typeName::class.java)")
+        line("    }")
+        val fieldPaths = fields.filterNot { it.isDocumentId }
+        if (fieldPaths.isNotEmpty() || throwOnExtraProperties) {
+            line()
+            line("    private companion object {")
+            fieldPaths.forEach {
+                line("        val ${fieldPath(it)} = com.google.firebase.firestore.FieldPath.of(${it.fieldName.toKotlinString()})")
+            }
+            if (throwOnExtraProperties) {
+                val names = fieldPaths.joinToString(", ") { it.fieldName.toKotlinString() }
+                line("        val FIELD_NAMES = kotlin.collections.setOf<kotlin.String>($names)")
+            }
+            line("    }")
+        }
+        line("}")
+        return builder.toString()
+    }
+
+    private fun writeValue(field: Field, variable: String, indent: String) {
+        val nullable = field.type.isMarkedNullable
+        val typeName = field.type.declaration.qualifiedName!!.asString()
+        if (field.isDocumentId) {
+            val value = if (typeName == "com.google.firebase.firestore.DocumentReference") "document.reference" else "document.id"
+            line("${indent}val $variable = $value")
+            return
+        }
+        val fieldPath = fieldPath(field)
+        line("${indent}val raw$variable = document.get($fieldPath)")
+        line("${indent}val $variable = ${TypeConverter.convert("raw$variable", field.type, fieldPath)}")
+        val fallbackCondition = when {
+            !nullable -> "$variable == null"
+            field.hasDefault -> "$variable == null && (raw$variable != null || !document.contains($fieldPath))"
+            else -> "$variable == null && raw$variable != null"
+        }
+        line("${indent}if ($fallbackCondition) {")
+        line("$indent    return fallback(document)")
+        line("$indent}")
+    }
+
+    private fun fieldPath(field: Field) = "FIELD_${fields.indexOf(field)}"
+
+    private fun line(text: String = "") {
+        builder.append(text).append('\n')
+    }
+}
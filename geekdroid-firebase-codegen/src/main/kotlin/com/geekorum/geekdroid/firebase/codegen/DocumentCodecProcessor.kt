@@ -0,0 +1,232 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.codegen
+
+import com.google.devtools.ksp.processing.CodeGenerator
+import com.google.devtools.ksp.processing.Dependencies
+import com.google.devtools.ksp.processing.KSPLogger
+import com.google.devtools.ksp.processing.Resolver
+import com.google.devtools.ksp.processing.SymbolProcessor
+import com.google.devtools.ksp.processing.SymbolProcessorEnvironment
+import com.google.devtools.ksp.processing.SymbolProcessorProvider
+import com.google.devtools.ksp.symbol.ClassKind
+import com.google.devtools.ksp.symbol.KSAnnotated
+import com.google.devtools.ksp.symbol.KSAnnotation
+import com.google.devtools.ksp.symbol.KSClassDeclaration
+import com.google.devtools.ksp.symbol.KSPropertyDeclaration
+import com.google.devtools.ksp.symbol.KSType
+import com.google.devtools.ksp.symbol.Modifier
+import com.google.devtools.ksp.validate
+
+private const val FIRESTORE_DOCUMENT = "com.geekorum.geekdroid.firebase.firestore.FirestoreDocument"
+private const val CODEC_VALUES = "com.geekorum.geekdroid.firebase.firestore.DocumentCodecValues"
+
+class DocumentCodecProcessorProvider : SymbolProcessorProvider {
+    override fun create(environment: SymbolProcessorEnvironment): SymbolProcessor {
+        return DocumentCodecProcessor(environment.codeGenerator, environment.logger)
+    }
+}
+
+/**
+ * Generate a DocumentCodec for each class annotated with FirestoreDocument.
+ *
+ * The codec follows the mapping rules of DocumentSnapshot.toObject() for the supported types and
+ * falls back to it when a document can't be decoded, or when toObject() would throw, so that it throws
+ * the same exception. For classes annotated with ThrowOnExtraProperties, a document with a field not
+ * mapped to a property falls back to toObject(). Finding these fields reads DocumentSnapshot.getData(),
+ * which converts all the fields of the document on each decode.
+ */
+class DocumentCodecProcessor(
+    private val codeGenerator: CodeGenerator,
+    private val logger: KSPLogger
+) : SymbolProcessor {
+
+    override fun process(resolver: Resolver): List<KSAnnotated> {
+        val (valid, deferred) = resolver.getSymbolsWithAnnotation(FIRESTORE_DOCUMENT)
+            .partition { it.validate() }
+        valid.forEach {
+            if (it is KSClassDeclaration && it.classKind == ClassKind.CLASS) {
+                generateCodec(it)
+            } else {
+                logger.error("@FirestoreDocument can only be applied to classes", it)
+            }
+        }
+        return deferred
+    }
+
+    private fun generateCodec(classDeclaration: KSClassDeclaration) {
+        if (classDeclaration.typeParameters.isNotEmpty()) {
+            logger.error("@FirestoreDocument classes can't have type parameters", classDeclaration)
+            return
+        }
+        val packageName = classDeclaration.packageName.asString()
+        val qualifiedName = classDeclaration.qualifiedName!!.asString()
+        val codecName = qualifiedName.removePrefix("$packageName.").replace('.', '_') + "_DocumentCodec"
+
+        val fields = try {
+            collectFields(classDeclaration)
+        } catch (e: UnsupportedTypeException) {
+            logger.warn("${e.message}, no DocumentCodec generated. toObject() will be used", classDeclaration)
+            return
+        }
+        val throwOnExtraProperties = classDeclaration.annotations.any {
+            it.shortName.asString() == "ThrowOnExtraProperties"
+        }
+        val code = CodecWriter(packageName, codecName, qualifiedName, fields, throwOnExtraProperties).write()
+        val file = codeGenerator.createNewFile(
+            Dependencies(aggregating = false, classDeclaration.containingFile!!), packageName, codecName)
+        file.bufferedWriter().use { it.write(code) }
+    }
+
+    private fun collectFields(classDeclaration: KSClassDeclaration): List<Field> {
+        val properties = classDeclaration.getAllProperties().associateBy { it.simpleName.asString() }
+        val constructor = classDeclaration.primaryConstructor
+        if (constructor != null && constructor.modifiers.any { it == Modifier.PRIVATE || it == Modifier.PROTECTED }) {
+            throw UnsupportedTypeException("${classDeclaration.simpleName.asString()} primary constructor is not accessible")
+        }
+        val constructorFields = constructor?.parameters.orEmpty().map { parameter ->
+            val name = parameter.name!!.asString()
+            val property = properties[name]
+            val annotations = parameter.annotations + property?.allAnnotations().orEmpty()
+            Field(
+                name = name,
+                fieldName = annotations.propertyName() ?: name,
+                type = parameter.type.resolve(),
+                isConstructorParameter = true,
+                hasDefault = parameter.hasDefault,
+                isDocumentId = annotations.any { it.shortName.asString() == "DocumentId" },
+            )
+        }
+        val constructorNames = constructorFields.mapTo(HashSet()) { it.name }
+        val mutableFields = properties.values
+            .filter { it.simpleName.asString() !in constructorNames && it.isSettable() }
+            .filterNot { property -> property.allAnnotations().any { it.shortName.asString() == "Exclude" } }
+            .map { property ->
+                val annotations = property.allAnnotations()
+                val name = property.simpleName.asString()
+                Field(
+                    name = name,
+                    fieldName = annotations.propertyName() ?: name,
+                    type = property.type.resolve(),
+                    isConstructorParameter = false,
+                    hasDefault = true,
+                    isDocumentId = annotations.any { it.shortName.asString() == "DocumentId" },
+                )
+            }
+        return (constructorFields + mutableFields).onEach { field ->
+            // check that the type is supported
+            TypeConverter.convert("raw", field.type, "fieldPath")
+        }
+    }
+
+    private fun KSPropertyDeclaration.isSettable(): Boolean {
+        val setter = setter ?: return false
+        return isMutable && Modifier.PRIVATE !in modifiers && Modifier.PRIVATE !in setter.modifiers
+    }
+
+    private fun KSPropertyDeclaration.allAnnotations(): Sequence<KSAnnotation> {
+        return annotations + getter?.annotations.orEmpty() + setter?.annotations.orEmpty()
+    }
+
+    private fun Sequence<KSAnnotation>.propertyName(): String? {
+        return firstOrNull { it.shortName.asString() == "PropertyName" }
+            ?.arguments?.firstOrNull()?.value as? String
+    }
+}
+
+internal class UnsupportedTypeException(message: String) : Exception(message)
+
+internal class Field(
+    val name: String,
+    val fieldName: String,
+    val type: KSType,
+    val isConstructorParameter: Boolean,
+    val hasDefault: Boolean,
+    val isDocumentId: Boolean,
+)
+
+/**
+ * Generate the Kotlin expressions converting a value returned by DocumentSnapshot.get()
+ */
+internal object TypeConverter {
+    private val numbers = mapOf(
+        "kotlin.Int" to "toInt",
+        "kotlin.Long" to "toLong",
+        "kotlin.Double" to "toDouble",
+        "kotlin.Float" to "toFloat",
+    )
+
+    // toObject() can't deserialize them
+    private val unsupportedTypes = setOf("kotlin.Short", "kotlin.Byte", "kotlin.Char")
+
+    private val directTypes = setOf(
+        "kotlin.String",
+        "kotlin.Boolean",
+        "com.google.firebase.Timestamp",
+        "com.google.firebase.firestore.GeoPoint",
+        "com.google.firebase.firestore.DocumentReference",
+        "com.google.firebase.firestore.Blob",
+    )
+
+    /**
+     * Return an expression converting [value], of type Any?, to [type] or null if it can't.
+     * [fieldPath] is set for top level fields, which can be decoded with DocumentSnapshot.get(fieldPath, Class)
+     */
+    fun convert(value: String, type: KSType, fieldPath: String?): String {
+        val declaration = type.declaration as? KSClassDeclaration
+            ?: throw UnsupportedTypeException("Unsupported type $type")
+        val name = declaration.qualifiedName!!.asString()
+        return when {
+            name in unsupportedTypes -> throw UnsupportedTypeException("Unsupported type $type")
+            name in numbers -> "$CODEC_VALUES.${numbers[name]}($value)"
+            name in directTypes -> "($value as? $name)"
+            name == "java.util.Date" -> "$CODEC_VALUES.toDate($value)"
+            declaration.classKind == ClassKind.ENUM_CLASS ->
+                "($value as? kotlin.String)?.let { name -> $name.entries.firstOrNull { it.name == name } }"
+            name == "kotlin.collections.List" -> {
+                val elementType = type.arguments.single().type?.resolve()
+                    ?: throw UnsupportedTypeException("Unsupported type $type")
+                val element = convert("element", elementType, null)
+                "($value as? kotlin.collections.List<*>)?.map { element -> $element ?: return fallback(document) }"
+            }
+            name == "kotlin.collections.Map" -> {
+                val keyType = type.arguments[0].type?.resolve()?.declaration?.qualifiedName?.asString()
+                val valueType = type.arguments[1].type?.resolve()
+                if (keyType != "kotlin.String" || valueType == null) {
+                    throw UnsupportedTypeException("Unsupported type $type")
+                }
+                val element = convert("element", valueType, null)
+                "($value as? kotlin.collections.Map<*, *>)?.entries?.associate { (key, element) -> " +
+                        "(key as kotlin.String) to ($element ?: return fallback(document)) }"
+            }
+            fieldPath != null && declaration.typeParameters.isEmpty() ->
+                // let Firestore map this field
+                "document.get($fieldPath, $name::class.java)"
+            else -> throw UnsupportedTypeException("Unsupported type $type")
+        }
+    }
+}
+
+internal fun String.toKotlinString(): String {
+    val escaped = replace("\\", "\\\\").replace("\"", "\\\"").replace("$", "\\$")
+    return "\"$escaped\""
+}
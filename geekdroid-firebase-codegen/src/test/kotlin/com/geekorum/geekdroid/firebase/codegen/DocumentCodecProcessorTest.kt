@@ -0,0 +1,218 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.codegen
+
+import com.geekorum.geekdroid.firebase.firestore.DocumentCodec
+import com.geekorum.geekdroid.firebase.firestore.DocumentCodecs
+import com.google.firebase.firestore.DocumentSnapshot
+import com.tschuchort.compiletesting.JvmCompilationResult
+import com.tschuchort.compiletesting.KotlinCompilation
+import com.tschuchort.compiletesting.SourceFile
+import com.tschuchort.compiletesting.kspWithCompilation
+import com.tschuchort.compiletesting.symbolProcessorProviders
+import org.jetbrains.kotlin.compiler.plugin.ExperimentalCompilerApi
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+@OptIn(ExperimentalCompilerApi::class)
+class DocumentCodecProcessorTest {
+
+    private val models = SourceFile.kotlin("Models.kt", """
+        package test
+
+        import com.geekorum.geekdroid.firebase.firestore.FirestoreDocument
+        import com.google.firebase.firestore.DocumentId
+        import com.google.firebase.firestore.Exclude
+        import com.google.firebase.firestore.PropertyName
+        import com.google.firebase.firestore.ThrowOnExtraProperties
+        import java.util.Date
+
+        data class Author(val name: String = "")
+
+        enum class Status { DRAFT, SENT }
+
+        @FirestoreDocument
+        data class Message(
+            @DocumentId val id: String = "",
+            val text: String,
+            val subtitle: String?,
+            val count: Int = 0,
+            val score: Double = 0.0,
+            val tags: List<String> = emptyList(),
+            val status: Status = Status.DRAFT,
+            val sentAt: Date? = null,
+            @PropertyName("author_info") val author: Author? = null,
+        ) {
+            var read: Boolean = false
+
+            @Exclude
+            var selected: Boolean = false
+        }
+
+        @FirestoreDocument
+        @ThrowOnExtraProperties
+        data class StrictMessage(val text: String)
+
+        class Outer {
+            @FirestoreDocument
+            data class Inner(val text: String)
+        }
+
+        @FirestoreDocument
+        data class Unsupported(val flags: Short)
+    """.trimIndent())
+
+    private val result by lazy { compile(models) }
+
+    private fun compile(vararg sources: SourceFile): JvmCompilationResult {
+        return KotlinCompilation().apply {
+            this.sources = sources.toList()
+            symbolProcessorProviders = mutableListOf(DocumentCodecProcessorProvider())
+            kspWithCompilation = true
+            inheritClassPath = true
+        }.compile()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun codec(name: String): DocumentCodec<Any> {
+        val codecClass = result.classLoader.loadClass("test.${name}_DocumentCodec")
+        return codecClass.getDeclaredConstructor().newInstance() as DocumentCodec<Any>
+    }
+
+    private fun author(name: String): Any {
+        return result.classLoader.loadClass("test.Author").getDeclaredConstructor(String::class.java).newInstance(name)
+    }
+
+    private fun messageData(vararg fields: Pair<String, Any?>): Map<String, Any?> {
+        return mapOf(
+            "text" to "hello",
+            "subtitle" to null,
+            "count" to 2L,
+            "score" to 1.5,
+            "tags" to listOf("a", "b"),
+            "status" to "SENT",
+            "sentAt" to null,
+            "author_info" to author("Alice"),
+        ) + fields
+    }
+
+    @Test
+    fun testThatCodecsAreGenerated() {
+        assertEquals(KotlinCompilation.ExitCode.OK, result.exitCode, result.messages)
+        codec("Message")
+        codec("StrictMessage")
+        codec("Outer_Inner")
+    }
+
+    @Test
+    fun testThatAllFieldsAreDecoded() {
+        val document = DocumentSnapshot("message-1", messageData("read" to true, "selected" to true))
+
+        val message = codec("Message").decode(document)
+
+        assertEquals("Message(id=message-1, text=hello, subtitle=null, count=2, score=1.5, tags=[a, b], " +
+            "status=SENT, sentAt=null, author=Author(name=Alice))", message.toString())
+        assertEquals(true, message!!.javaClass.getMethod("getRead").invoke(message))
+        // excluded properties are not decoded
+        assertEquals(false, message.javaClass.getMethod("getSelected").invoke(message))
+        assertEquals(0, document.toObjectCalls)
+    }
+
+    @Test
+    fun testThatMissingDocumentIsNull() {
+        val document = DocumentSnapshot("message-1", null)
+
+        assertNull(codec("Message").decode(document))
+        assertEquals(0, document.toObjectCalls)
+    }
+
+    @Test
+    fun testThatNumbersAreConvertedLikeToObject() {
+        val document = DocumentSnapshot("message-1", messageData("count" to 3.7, "score" to 2L))
+
+        val message = codec("Message").decode(document)
+
+        assertTrue(message.toString().contains("count=3, score=2.0"), message.toString())
+        assertEquals(0, document.toObjectCalls)
+    }
+
+    @Test
+    fun testThatValuesRejectedByToObjectFallBackToIt() {
+        val invalidFields = listOf(
+            // out of the Int range
+            "count" to Int.MAX_VALUE + 1L,
+            // not exactly representable as a Double
+            "score" to Long.MAX_VALUE - 1,
+            "text" to 42L,
+            "status" to "UNKNOWN",
+            "tags" to listOf("a", 1L),
+            // a missing field with a default value can't be passed to the constructor
+            "count" to null,
+        )
+        invalidFields.forEach { field ->
+            val data = if (field.second == null) messageData() - field.first else messageData(field)
+            val document = DocumentSnapshot("message-1", data)
+
+            codec("Message").decode(document)
+
+            assertEquals(1, document.toObjectCalls, "field $field")
+        }
+    }
+
+    @Test
+    fun testThatExtraPropertiesFallBackToToObjectWhenTheyThrow() {
+        val valid = DocumentSnapshot("message-1", mapOf("text" to "hello"))
+        val extra = DocumentSnapshot("message-1", mapOf("text" to "hello", "other" to 1L))
+
+        assertEquals("StrictMessage(text=hello)", codec("StrictMessage").decode(valid).toString())
+        assertNull(codec("StrictMessage").decode(extra))
+        assertEquals(0, valid.toObjectCalls)
+        assertEquals(1, extra.toObjectCalls)
+    }
+
+    @Test
+    fun testThatExtraPropertiesAreIgnoredByDefault() {
+        val document = DocumentSnapshot("message-1", messageData("other" to 1L))
+
+        assertNotNull(codec("Message").decode(document))
+        assertEquals(0, document.toObjectCalls)
+    }
+
+    @Test
+    fun testThatNestedClassCodecIsFoundFromItsClass() {
+        val innerClass = result.classLoader.loadClass("test.Outer\$Inner")
+
+        assertNotNull(DocumentCodecs.get(innerClass.kotlin))
+    }
+
+    @Test
+    fun testThatUnsupportedTypesDontGenerateCodec() {
+        assertTrue(result.messages.contains("no DocumentCodec generated"), result.messages)
+        assertFailsWith<ClassNotFoundException> {
+            result.classLoader.loadClass("test.Unsupported_DocumentCodec")
+        }
+    }
+}
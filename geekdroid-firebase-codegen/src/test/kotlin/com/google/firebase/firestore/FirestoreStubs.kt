@@ -0,0 +1,72 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.google.firebase.firestore
+
+/*
+ * Stand-ins of the Firestore API used by the generated codecs, for the tests of the processor.
+ * The Firestore SDK is an Android library, it can't be used in this JVM module.
+ */
+
+annotation class DocumentId
+
+annotation class PropertyName(val value: String)
+
+annotation class Exclude
+
+annotation class ThrowOnExtraProperties
+
+class FieldPath private constructor(internal val name: String) {
+    companion object {
+        @JvmStatic
+        fun of(vararg fieldNames: String) = FieldPath(fieldNames.joinToString("."))
+    }
+}
+
+class DocumentReference(val id: String)
+
+class GeoPoint(val latitude: Double, val longitude: Double)
+
+class Blob
+
+/**
+ * A document backed by [data], null if it doesn't exist.
+ * toObject() doesn't map the document, it only counts that the codec fell back to it.
+ */
+class DocumentSnapshot(val id: String, val data: Map<String, Any?>?) {
+    val reference = DocumentReference(id)
+
+    var toObjectCalls = 0
+        private set
+
+    fun exists(): Boolean = data != null
+
+    fun contains(fieldPath: FieldPath): Boolean = data?.containsKey(fieldPath.name) == true
+
+    fun get(fieldPath: FieldPath): Any? = data?.get(fieldPath.name)
+
+    fun <T> get(fieldPath: FieldPath, valueType: Class<T>): T? = valueType.cast(get(fieldPath))
+
+    fun <T> toObject(valueType: Class<T>): T? {
+        toObjectCalls++
+        return null
+    }
+}
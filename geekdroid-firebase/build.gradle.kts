@@ -1,6 +1,7 @@
 plugins {
     id("com.android.library")
     kotlin("android")
+    id("kotlin-parcelize")
     id("com.geekorum.build.android-tests")
     id("com.geekorum.build.android-avdl")
     `maven-publish`
@@ -13,6 +14,7 @@ android {
 
     defaultConfig {
         minSdk = 24
+        consumerProguardFiles("consumer-rules.pro")
     }
 
     buildTypes {
@@ -27,6 +29,14 @@ android {
         abortOnError = false
     }
 
+    testOptions {
+        unitTests.all {
+            // measures of PagingSourcesBenchmarkTest, kept by CI
+            it.systemProperty("geekdroid.pagingBenchmarkReportDir",
+                layout.buildDirectory.dir("reports/paging-benchmark/${it.name}").get().asFile.path)
+        }
+    }
+
     packaging {
         resources {
             excludes += listOf("META-INF/LICENSE.md", "META-INF/LICENSE-notice.md")
@@ -64,6 +74,8 @@ dependencies {
     implementation(libs.play.services.location)
 
     api(libs.paging.runtime.ktx)
+
+    testImplementation(libs.kotlinx.coroutines.test)
 }
 
 apply {
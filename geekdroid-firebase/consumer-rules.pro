@@ -0,0 +1,7 @@
+# Generated DocumentCodec are looked up by name
+-keep class * implements com.geekorum.geekdroid.firebase.firestore.DocumentCodec {
+    <init>();
+}
+
+# The name of a generated DocumentCodec is derived from the name of its class
+-keepnames @com.geekorum.geekdroid.firebase.firestore.FirestoreDocument class *
@@ -0,0 +1,173 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.firebase.firestore.DocumentReference
+import com.google.firebase.firestore.FirebaseFirestore
+import com.google.firebase.firestore.SetOptions
+import com.google.firebase.firestore.WriteBatch
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.tasks.await
+
+/**
+ * Maximum number of writes in a Firestore [WriteBatch]
+ */
+const val MAX_WRITE_BATCH_SIZE = 500
+
+/**
+ * A write to a document, to be committed in a [WriteBatch].
+ */
+sealed class DocumentWrite {
+    abstract val document: DocumentReference
+
+    internal abstract fun applyTo(batch: WriteBatch)
+
+    data class Set(
+        override val document: DocumentReference,
+        val data: Any,
+        val options: SetOptions? = null,
+    ) : DocumentWrite() {
+        override fun applyTo(batch: WriteBatch) {
+            if (options != null) {
+                batch.set(document, data, options)
+            } else {
+                batch.set(document, data)
+            }
+        }
+    }
+
+    data class Update(
+        override val document: DocumentReference,
+        val data: Map<String, Any>,
+    ) : DocumentWrite() {
+        override fun applyTo(batch: WriteBatch) {
+            batch.update(document, data)
+        }
+    }
+
+    data class Delete(override val document: DocumentReference) : DocumentWrite() {
+        override fun applyTo(batch: WriteBatch) {
+            batch.delete(document)
+        }
+    }
+}
+
+/**
+ * A write which was not committed
+ */
+data class WriteFailure(val write: DocumentWrite, val exception: Exception)
+
+/**
+ * Result of writes committed in batches.
+ * A batch is atomic, so all the writes of a batch failing to commit are in [failures] with the same exception.
+ */
+data class BatchWriteResult(
+    val written: List<DocumentWrite>,
+    val failures: List<WriteFailure>,
+) {
+    val isSuccessful: Boolean
+        get() = failures.isEmpty()
+}
+
+/**
+ * Commit the writes in batches of [batchSize] writes, with at most [maxConcurrentBatches] batches
+ * committing at the same time.
+ * See [commitInBatches]
+ */
+suspend fun FirebaseFirestore.writeInBatches(
+    writes: Iterable<DocumentWrite>,
+    batchSize: Int = MAX_WRITE_BATCH_SIZE,
+    maxConcurrentBatches: Int = 4,
+): BatchWriteResult = writes.asFlow().commitInBatches(this, batchSize, maxConcurrentBatches)
+
+/**
+ * Collect the writes in batches of [batchSize] writes and commit them, with at most [maxConcurrentBatches] batches
+ * committing at the same time. A batch is committed as soon as it is full, while the next writes are collected.
+ * The collection of the flow is suspended while [maxConcurrentBatches] batches are committing.
+ *
+ * Failures don't stop the other batches. The writes rejected by the batch, like a set() with unsupported data,
+ * fail individually, the other writes of their batch are still committed.
+ */
+suspend fun Flow<DocumentWrite>.commitInBatches(
+    firestore: FirebaseFirestore,
+    batchSize: Int = MAX_WRITE_BATCH_SIZE,
+    maxConcurrentBatches: Int = 4,
+): BatchWriteResult {
+    require(batchSize in 1..MAX_WRITE_BATCH_SIZE) { "batchSize must be between 1 and $MAX_WRITE_BATCH_SIZE" }
+    require(maxConcurrentBatches > 0) { "maxConcurrentBatches must be positive" }
+    val semaphore = Semaphore(maxConcurrentBatches)
+    val rejected = mutableListOf<WriteFailure>()
+    return coroutineScope {
+        val commits = mutableListOf<Deferred<BatchWriteResult>>()
+        var batch: WriteBatch? = null
+        var batchWrites = ArrayList<DocumentWrite>(batchSize)
+
+        suspend fun commitBatch() {
+            val toCommit = batch ?: return
+            val writes = batchWrites
+            batch = null
+            batchWrites = ArrayList(batchSize)
+            semaphore.acquire()
+            commits += async {
+                try {
+                    toCommit.commit().await()
+                    BatchWriteResult(writes, emptyList())
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    BatchWriteResult(emptyList(), writes.map { WriteFailure(it, e) })
+                } finally {
+                    semaphore.release()
+                }
+            }
+        }
+
+        this@commitInBatches.collect { write ->
+            val currentBatch = batch ?: firestore.batch().also { batch = it }
+            try {
+                write.applyTo(currentBatch)
+                batchWrites += write
+            } catch (e: RuntimeException) {
+                rejected += WriteFailure(write, e)
+            }
+            if (batchWrites.size == batchSize) {
+                commitBatch()
+            }
+        }
+        if (batchWrites.isNotEmpty()) {
+            commitBatch()
+        }
+
+        val results = commits.awaitAll()
+        BatchWriteResult(
+            written = results.flatMap { it.written },
+            failures = rejected + results.flatMap { it.failures },
+        )
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.firebase.Timestamp
+import com.google.firebase.firestore.DocumentSnapshot
+import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.reflect.KClass
+
+/**
+ * Mark a class to generate a [DocumentCodec] for it with the geekdroid-firebase-codegen KSP processor.
+ *
+ * The generated codec reads the fields of the document without reflection. It falls back to
+ * [DocumentSnapshot.toObject] when the document can't be mapped with the primary constructor, or when
+ * toObject() would fail, so that it fails the same way.
+ *
+ * For a class also annotated with ThrowOnExtraProperties, the codec reads [DocumentSnapshot.getData] on each
+ * decode to check the field names, which converts all the fields of the document. Avoid it on large documents.
+ *
+ * The codec is looked up from the name of the class. The consumer ProGuard rules of the library keep the
+ * names of the annotated classes.
+ */
+@Target(AnnotationTarget.CLASS)
+// retained at runtime for the ProGuard rules, which must match it in the compiled classes
+@Retention(AnnotationRetention.RUNTIME)
+annotation class FirestoreDocument
+
+/**
+ * Convert a [DocumentSnapshot] to an object of type [T].
+ */
+fun interface DocumentCodec<T : Any> {
+    fun decode(document: DocumentSnapshot): T?
+}
+
+/**
+ * Lookup of the generated [DocumentCodec]s.
+ *
+ * The codec generated for `com.example.Message` is `com.example.Message_DocumentCodec`.
+ * The lookup is done once per type.
+ */
+object DocumentCodecs {
+    private val codecs = ConcurrentHashMap<Class<*>, Any>()
+    private val noCodec = Any()
+
+    /**
+     * Get the generated codec for [type], or null if there is none.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> get(type: KClass<T>): DocumentCodec<T>? {
+        val codec = codecs.getOrPut(type.java) { findGeneratedCodec(type.java) ?: noCodec }
+        return codec as? DocumentCodec<T>
+    }
+
+    /**
+     * Register a codec for [type], replacing the generated one if any.
+     */
+    fun <T : Any> register(type: KClass<T>, codec: DocumentCodec<T>) {
+        codecs[type.java] = codec
+    }
+
+    private fun findGeneratedCodec(type: Class<*>): DocumentCodec<*>? {
+        val packagePrefix = type.`package`?.name?.let { "$it." } ?: ""
+        val simpleName = type.name.removePrefix(packagePrefix).replace('$', '_')
+        return try {
+            val codecClass = Class.forName("$packagePrefix${simpleName}_DocumentCodec", true, type.classLoader)
+            codecClass.getDeclaredConstructor().newInstance() as DocumentCodec<*>
+        } catch (e: ClassNotFoundException) {
+            null
+        }
+    }
+}
+
+/**
+ * Conversions of the values read from a [DocumentSnapshot], used by the generated [DocumentCodec]s.
+ *
+ * They accept the same values as [DocumentSnapshot.toObject] and convert them the same way.
+ * They return null for the values it would reject, like a number out of range, so that the codec
+ * falls back to [DocumentSnapshot.toObject] and fails with its exception.
+ */
+object DocumentCodecValues {
+
+    @JvmStatic
+    fun toInt(value: Any?): Int? = when (value) {
+        is Int -> value
+        is Long -> if (value >= Int.MIN_VALUE && value <= Int.MAX_VALUE) value.toInt() else null
+        is Double -> if (value >= Int.MIN_VALUE && value <= Int.MAX_VALUE) value.toInt() else null
+        else -> null
+    }
+
+    @JvmStatic
+    fun toLong(value: Any?): Long? = when (value) {
+        is Int -> value.toLong()
+        is Long -> value
+        is Double -> if (value >= Long.MIN_VALUE && value <= Long.MAX_VALUE) value.toLong() else null
+        else -> null
+    }
+
+    @JvmStatic
+    fun toDouble(value: Any?): Double? = when (value) {
+        is Int -> value.toDouble()
+        // toObject() rejects a loss of precision
+        is Long -> value.toDouble().takeIf { it.toLong() == value }
+        is Double -> value
+        else -> null
+    }
+
+    @JvmStatic
+    fun toFloat(value: Any?): Float? = toDouble(value)?.toFloat()
+
+    @JvmStatic
+    fun toDate(value: Any?): Date? = when (value) {
+        is Date -> value
+        is Timestamp -> value.toDate()
+        else -> null
+    }
+}
+
+/**
+ * Get a document mapper for [type], using its generated [DocumentCodec] if available
+ * or [DocumentSnapshot.toObject] otherwise.
+ */
+fun <T : Any> documentMapperFor(type: KClass<T>): (DocumentSnapshot) -> T? {
+    val codec = DocumentCodecs.get(type)
+    return if (codec != null) codec::decode else { document -> document.toObject(type.java) }
+}
@@ -0,0 +1,88 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import android.os.Parcelable
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.Query
+import kotlinx.parcelize.Parcelize
+import kotlinx.parcelize.RawValue
+
+/**
+ * Position of a document in a query, used as paging cursor.
+ */
+sealed class DocumentCursor {
+    abstract val documentId: String
+
+    /**
+     * Cursor keeping the whole document.
+     */
+    data class Snapshot(val documentSnapshot: DocumentSnapshot) : DocumentCursor() {
+        override val documentId: String
+            get() = documentSnapshot.id
+    }
+
+    /**
+     * Cursor keeping only the values of the document for the OrderBy clauses of the query, in the same order,
+     * and its id.
+     *
+     * The document id is appended to the values as tie-breaker, so that documents with the same values are
+     * not skipped. The query must then be ordered by FieldPath.documentId() after its other OrderBy clauses,
+     * and [values] must not contain the id. A Collection, only ordered by id, has no values.
+     *
+     * It can be saved in a Parcel if the values are supported by Parcel.writeValue(), e.g. String, Long, Double,
+     * Boolean or Timestamp.
+     */
+    @Parcelize
+    data class FieldValues(
+        override val documentId: String,
+        val values: @RawValue List<Any?>
+    ) : DocumentCursor(), Parcelable
+
+    companion object {
+        /**
+         * Create the cursor of [document], with [cursorValues] if provided
+         */
+        fun of(document: DocumentSnapshot, cursorValues: ((DocumentSnapshot) -> List<Any?>)?): DocumentCursor {
+            return if (cursorValues != null) {
+                FieldValues(document.id, cursorValues(document))
+            } else Snapshot(document)
+        }
+    }
+}
+
+internal fun Query.startAfterCursor(cursor: DocumentCursor): Query = when (cursor) {
+    is DocumentCursor.Snapshot -> startAfter(cursor.documentSnapshot)
+    is DocumentCursor.FieldValues -> startAfter(*cursor.fieldValues())
+}
+
+internal fun Query.startAtCursor(cursor: DocumentCursor): Query = when (cursor) {
+    is DocumentCursor.Snapshot -> startAt(cursor.documentSnapshot)
+    is DocumentCursor.FieldValues -> startAt(*cursor.fieldValues())
+}
+
+internal fun Query.endBeforeCursor(cursor: DocumentCursor): Query = when (cursor) {
+    is DocumentCursor.Snapshot -> endBefore(cursor.documentSnapshot)
+    is DocumentCursor.FieldValues -> endBefore(*cursor.fieldValues())
+}
+
+private fun DocumentCursor.FieldValues.fieldValues(): Array<Any?> = (values + documentId).toTypedArray()
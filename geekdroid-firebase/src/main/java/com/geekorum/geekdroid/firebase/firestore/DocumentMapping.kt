@@ -0,0 +1,115 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.collection.LruCache
+import com.google.firebase.firestore.DocumentSnapshot
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.withContext
+
+/**
+ * How the paging sources map their documents.
+ * Pages with at least [parallelThreshold] documents are split in chunks of [chunkSize] documents
+ * mapped in parallel on [dispatcher].
+ */
+class MappingOptions(
+    val dispatcher: CoroutineDispatcher = Dispatchers.Default,
+    val parallelThreshold: Int = 64,
+    val chunkSize: Int = 32,
+) {
+    init {
+        require(chunkSize > 0) { "chunkSize must be positive" }
+    }
+}
+
+/**
+ * Objects mapped from documents, kept across the successive generations of a paging source.
+ *
+ * A document is mapped again only when its content changed. Snapshots differing only by their metadata,
+ * like the confirmation of a local write or a snapshot from the server replacing one from the cache,
+ * reuse the mapped object. The last snapshot of the document is kept with the object: an equal snapshot
+ * is a hit without reading the data, which is only compared when the snapshots differ.
+ */
+class DocumentMappingCache<T : Any>(maxSize: Int = 500) {
+    private val entries = LruCache<String, Entry<T>>(maxSize)
+
+    internal fun getOrMap(document: DocumentSnapshot, documentMapper: (DocumentSnapshot) -> T?): T? {
+        val path = document.reference.path
+        val entry = entries[path]
+        if (entry != null) {
+            val previous = entry.document
+            if (previous == document) {
+                return entry.value
+            }
+            if (previous.exists() == document.exists() && previous.data == document.data) {
+                // the next lookup of this snapshot is the cheap one
+                entries.put(path, Entry(document, entry.value))
+                return entry.value
+            }
+        }
+        return documentMapper(document).also {
+            entries.put(path, Entry(document, it))
+        }
+    }
+
+    /**
+     * Remove all the mapped objects from the cache
+     */
+    fun clear() {
+        entries.evictAll()
+    }
+
+    private class Entry<T>(val document: DocumentSnapshot, val value: T?)
+}
+
+internal class DocumentsMapper<T : Any>(
+    private val options: MappingOptions,
+    private val cache: DocumentMappingCache<T>?,
+    private val documentMapper: (DocumentSnapshot) -> T?
+) {
+
+    /**
+     * Map the documents. The result is aligned with [documents] and contains null when
+     * the mapper returned null.
+     */
+    suspend fun map(documents: List<DocumentSnapshot>): List<T?> {
+        if (documents.isEmpty()) {
+            return emptyList()
+        }
+        return withContext(options.dispatcher) {
+            if (documents.size < options.parallelThreshold) {
+                documents.map { mapDocument(it) }
+            } else {
+                documents.chunked(options.chunkSize).map { chunk ->
+                    async { chunk.map { mapDocument(it) } }
+                }.awaitAll().flatten()
+            }
+        }
+    }
+
+    private fun mapDocument(document: DocumentSnapshot): T? {
+        return if (cache != null) cache.getOrMap(document, documentMapper) else documentMapper(document)
+    }
+}
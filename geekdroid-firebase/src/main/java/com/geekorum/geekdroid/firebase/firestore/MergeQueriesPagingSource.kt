@@ -0,0 +1,249 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.Query
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.DisposableHandle
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.coroutineScope
+import timber.log.Timber
+import java.util.PriorityQueue
+import kotlin.coroutines.coroutineContext
+import kotlin.reflect.KClass
+
+fun <T: Any> MergeQueriesPagingSource(
+    queries: List<Query>, type: KClass<T>,
+    comparator: Comparator<DocumentSnapshot>,
+    mappingOptions: MappingOptions = MappingOptions(),
+    mappingCache: DocumentMappingCache<T>? = null,
+    maxPages: Int = Int.MAX_VALUE,
+    cursorValues: ((DocumentSnapshot) -> List<Any?>)? = null,
+): MergeQueriesPagingSource<T> {
+    return MergeQueriesPagingSource(queries, comparator,
+        mappingOptions = mappingOptions,
+        mappingCache = mappingCache,
+        maxPages = maxPages,
+        cursorValues = cursorValues,
+        documentMapper = documentMapperFor(type))
+}
+
+/**
+ * Merge the results of several queries sharing the same ordering.
+ *
+ * Each page loads the next documents of all the queries concurrently and merges them
+ * according to [comparator], which must be consistent with the OrderBy clauses of the queries.
+ * Documents returned by several queries appear only once.
+ *
+ * The load size is shared between the queries not exhausted yet, so that a page reads about as many
+ * documents as it returns. When most documents come from one query, a page stops at the last loaded
+ * document of that query and can be shorter than the load size.
+ *
+ * The source only supports appending pages and reloads from the start on invalidation.
+ *
+ * Each loaded page keeps a snapshot listener per query. Set [maxPages] to only keep the listeners of
+ * the last loaded pages. It should be at least PagingConfig.maxSize / pageSize, otherwise changes in
+ * pages still displayed are not detected.
+ */
+class MergeQueriesPagingSource<T: Any>(
+    private val queries: List<Query>,
+    private val comparator: Comparator<DocumentSnapshot>,
+    mappingOptions: MappingOptions = MappingOptions(),
+    /** Cache of the mapped objects, kept across invalidations */
+    mappingCache: DocumentMappingCache<T>? = null,
+    maxPages: Int = Int.MAX_VALUE,
+    /**
+     * Values of a document for the OrderBy clauses of the queries, to use compact [DocumentCursor.FieldValues] keys.
+     * The queries must have the same OrderBy clauses, ending with FieldPath.documentId(),
+     * see [DocumentCursor.FieldValues].
+     */
+    private val cursorValues: ((DocumentSnapshot) -> List<Any?>)? = null,
+    documentMapper: (DocumentSnapshot) -> T?
+) : PagingSource<MergeQueriesPagingSource.Key, T>() {
+    private val sourceScope = CoroutineScope(Job())
+    private val documentsMapper = DocumentsMapper(mappingOptions, mappingCache, documentMapper)
+    private val pageListeners = PageListenersWindow(maxPages)
+
+    private var cancelOnCompletion: DisposableHandle? = null
+
+    init {
+        registerInvalidatedCallback {
+            sourceScope.cancel()
+        }
+    }
+
+    override suspend fun load(params: LoadParams<Key>): LoadResult<Key, T> {
+        if (cancelOnCompletion == null) {
+            cancelOnCompletion = coroutineContext[Job]!!.invokeOnCompletion {
+                sourceScope.cancel()
+            }
+        }
+        if (params is LoadParams.Prepend) {
+            return LoadResult.Page(data = emptyList(), prevKey = null, nextKey = null)
+        }
+        val queryKeys = params.key?.queryKeys ?: List(queries.size) { QueryKey.InitialKey }
+        // share the page between the queries still having documents
+        val activeQueries = queryKeys.count { it != QueryKey.EndOfQueryKey }.coerceAtLeast(1)
+        val queryLoadSize = (params.loadSize + activeQueries - 1) / activeQueries
+        // the listeners of the page
+        val pageJob = Job(sourceScope.coroutineContext[Job])
+        val loadScope = CoroutineScope(coroutineContext + pageJob)
+
+        val results = coroutineScope {
+            queryKeys.mapIndexed { idx, queryKey ->
+                async { loadQuery(queries[idx], queryKey, queryLoadSize, loadScope) }
+            }.awaitAll()
+        }
+        val queriesDocuments = results.map {
+            when (it) {
+                is SnapshotsOrError.Error -> {
+                    // the listeners of the other queries are useless without the page
+                    pageJob.cancel()
+                    return LoadResult.Error(it.exception)
+                }
+                is SnapshotsOrError.Snapshots -> it.snapshots
+            }
+        }
+
+        val merged = merge(params.key, queryKeys, queriesDocuments, queryLoadSize, params.loadSize)
+        val nextKey = merged.queryKeys.takeUnless { keys -> keys.all { it == QueryKey.EndOfQueryKey } }
+            ?.let { Key(it, merged.lastIds) }
+        return LoadResult.Page(
+            data = documentsMapper.map(merged.documents).filterNotNull(),
+            prevKey = null,
+            nextKey = nextKey
+        ).also {
+            Timber.v("load params $params nextKey ${it.nextKey}")
+            pageListeners.onLoadResult(pageJob, params, it)
+        }
+    }
+
+    private suspend fun loadQuery(query: Query, queryKey: QueryKey, loadSize: Int, scope: CoroutineScope): SnapshotsOrError {
+        val limit = loadSize.toLong()
+        val pageQuery = when (queryKey) {
+            QueryKey.EndOfQueryKey -> return SnapshotsOrError.Snapshots(emptyList())
+            QueryKey.InitialKey -> query.limit(limit)
+            is QueryKey.StartAtDocumentKey -> query.startAfterCursor(queryKey.cursor).limit(limit)
+        }
+        return loadAndInvalidateOnChange(pageQuery, scope)
+    }
+
+    private fun merge(
+        key: Key?,
+        queryKeys: List<QueryKey>,
+        queriesDocuments: List<List<DocumentSnapshot>>,
+        queryLoadSize: Int,
+        loadSize: Int,
+    ): MergedPage {
+        val heap = PriorityQueue<QueryHead>(queries.size.coerceAtLeast(1)) { a, b ->
+            comparator.compare(a.document, b.document)
+        }
+        queriesDocuments.forEachIndexed { idx, documents ->
+            if (documents.isNotEmpty()) {
+                heap += QueryHead(idx, 0, documents[0])
+            }
+        }
+        val newQueryKeys = queryKeys.toMutableList()
+        val consumed = IntArray(queries.size)
+        val lastConsumed = arrayOfNulls<DocumentSnapshot>(queries.size)
+        // queries which returned a full page may have more documents
+        val hasMore = queriesDocuments.map { it.size >= queryLoadSize }
+        // the documents equal to the last one of the previous page may not have been consumed in all the queries
+        val previousIds = key?.lastIds.orEmpty()
+        val seenIds = HashSet<String>(previousIds)
+        val result = ArrayList<DocumentSnapshot>(loadSize)
+        while (heap.isNotEmpty()) {
+            val head = heap.peek()!!
+            val isDuplicate = head.document.id in seenIds
+            val pageFull = result.size >= loadSize
+            // once the page is full, only consume the duplicates of the last document
+            if (pageFull && !(isDuplicate && comparator.compare(head.document, result.last()) == 0)) {
+                break
+            }
+            heap.poll()
+            if (!isDuplicate) {
+                seenIds += head.document.id
+                result += head.document
+            }
+            val documents = queriesDocuments[head.queryIdx]
+            val nextPosition = head.position + 1
+            consumed[head.queryIdx] = nextPosition
+            lastConsumed[head.queryIdx] = head.document
+            if (nextPosition < documents.size) {
+                heap += QueryHead(head.queryIdx, nextPosition, documents[nextPosition])
+            } else if (hasMore[head.queryIdx]) {
+                // the next documents of this query are unknown, stop there
+                break
+            }
+        }
+        queriesDocuments.forEachIndexed { idx, documents ->
+            val last = lastConsumed[idx]
+            if (!hasMore[idx] && consumed[idx] == documents.size) {
+                newQueryKeys[idx] = QueryKey.EndOfQueryKey
+            } else if (last != null) {
+                newQueryKeys[idx] = QueryKey.StartAtDocumentKey(DocumentCursor.of(last, cursorValues))
+            }
+        }
+        val lastDocument = result.lastOrNull() ?: return MergedPage(result, newQueryKeys, previousIds)
+        val lastIds = result.filter { comparator.compare(it, lastDocument) == 0 }.mapTo(HashSet()) { it.id }
+        // the documents of the previous page are before the first one of this page, or equal to it.
+        // Keep their ids while the whole page is equal to its last document
+        if (comparator.compare(result.first(), lastDocument) == 0) {
+            lastIds += previousIds
+        }
+        return MergedPage(result, newQueryKeys, lastIds)
+    }
+
+    override fun getRefreshKey(state: PagingState<Key, T>): Key? = null
+
+    /**
+     * Position of each query, in the same order than the queries.
+     * [lastIds] are the ids of the documents equal to the last document of the previous page,
+     * which must not be returned again.
+     */
+    data class Key(
+        val queryKeys: List<QueryKey>,
+        val lastIds: Set<String> = emptySet(),
+    )
+
+    sealed class QueryKey {
+        object InitialKey : QueryKey()
+        /** No more documents in the query */
+        object EndOfQueryKey : QueryKey()
+        /** Next documents are after [cursor] */
+        data class StartAtDocumentKey(val cursor: DocumentCursor) : QueryKey()
+    }
+
+    private class QueryHead(val queryIdx: Int, val position: Int, val document: DocumentSnapshot)
+
+    private class MergedPage(
+        val documents: List<DocumentSnapshot>,
+        val queryKeys: List<QueryKey>,
+        val lastIds: Set<String>,
+    )
+}
@@ -0,0 +1,238 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.collection.LruCache
+import androidx.paging.PagingSource
+import com.google.firebase.firestore.DocumentChange
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.Query
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.tasks.await
+import timber.log.Timber
+
+/**
+ * Pages loaded by [QueryPagingSource]s or [ConcatQueriesPagingSource]s, kept across the successive
+ * generations of the source.
+ *
+ * When a loaded page changes, the source applies the changes to the cached page before invalidating itself.
+ * The next generation gets the updated page from this cache instead of waiting for Firestore, and only the
+ * added or modified documents are mapped again. Unchanged items keep the same instances, which keeps the diff
+ * computed by the PagingDataAdapter minimal.
+ *
+ * A page loaded full keeps its first and last documents as bounds: the documents inserted in the page
+ * make it grow instead of shifting the following pages, so their keys and cached pages stay valid.
+ *
+ * Create one cache per list, outside of the PagingSource factory:
+ * ```
+ * val pageCache = QueryPageCache<Message>()
+ * val pager = Pager(config) {
+ *     QueryPagingSource(query, pageCache = pageCache) { it.toObject<Message>() }
+ * }
+ * ```
+ */
+class QueryPageCache<T : Any>(maxPages: Int = 32) {
+    private val pages = LruCache<PageCacheKey, CachedPage<T>>(maxPages)
+
+    internal operator fun get(key: PageCacheKey): CachedPage<T>? = pages[key]
+
+    internal operator fun set(key: PageCacheKey, page: CachedPage<T>) {
+        pages.put(key, page)
+    }
+
+    /**
+     * Remove all the pages from the cache
+     */
+    fun clear() {
+        pages.evictAll()
+    }
+}
+
+/**
+ * Identifies a page by the query it belongs to, its boundary document and its size.
+ * The boundary document of a page after a bounded page is the bound of that page, see [PageBounds].
+ */
+internal data class PageCacheKey(
+    val queryIdx: Int,
+    val boundary: PageBoundary,
+    val documentId: String?,
+    val loadSize: Int,
+)
+
+internal enum class PageBoundary {
+    START, END, START_AFTER, START_AT, END_BEFORE
+}
+
+/**
+ * The first and last documents of a page loaded full. After the first load, the page is observed
+ * between its key and the bound on the other side instead of with a limit.
+ */
+internal class PageBounds(val first: DocumentSnapshot, val last: DocumentSnapshot)
+
+internal class CachedPage<T : Any>(
+    val documents: List<DocumentSnapshot>,
+    // aligned with documents, null when the mapper returned null
+    private val mappedItems: List<T?>,
+    val bounds: PageBounds? = null,
+) {
+    val items: List<T>
+        get() = mappedItems.filterNotNull()
+
+    /**
+     * Whether the page was full when loaded with [loadSize]. A bounded page may have fewer documents
+     * after some deletions, but it is still followed by the rest of the query.
+     */
+    fun isFull(loadSize: Int): Boolean = bounds != null || documents.size >= loadSize
+
+    /**
+     * The first and last documents of the page, to make the keys of the adjacent pages.
+     * The side of a bounded page opposite to its key is its bound, whatever the documents inserted
+     * or removed in the page, so the key of the page loaded from that side doesn't change.
+     */
+    fun edgeDocuments(keyAtEnd: Boolean): Pair<DocumentSnapshot?, DocumentSnapshot?> {
+        val first = bounds?.first?.takeIf { keyAtEnd } ?: documents.firstOrNull() ?: bounds?.first
+        val last = bounds?.last?.takeUnless { keyAtEnd } ?: documents.lastOrNull() ?: bounds?.last
+        return first to last
+    }
+
+    /**
+     * Create the updated page, mapping only the documents with an id in [changedIds].
+     */
+    suspend fun update(documents: List<DocumentSnapshot>, changedIds: Set<String>, documentsMapper: DocumentsMapper<T>): CachedPage<T> {
+        val itemsById = HashMap<String, T?>(this.documents.size)
+        this.documents.forEachIndexed { idx, document -> itemsById[document.id] = mappedItems[idx] }
+        val toMap = documents.filter { it.id in changedIds || it.id !in itemsById }
+        documentsMapper.map(toMap).forEachIndexed { idx, item -> itemsById[toMap[idx].id] = item }
+        return CachedPage(documents, documents.map { itemsById[it.id] }, bounds)
+    }
+
+    /**
+     * Return the ids of the documents which are new or different in [documents].
+     * The data of the documents is only compared when their snapshots are not equal, e.g. when
+     * they differ by their metadata.
+     */
+    fun changedIds(documents: List<DocumentSnapshot>): Set<String> {
+        val previousById = this.documents.associateBy { it.id }
+        return documents.filter {
+            val previous = previousById[it.id]
+            previous == null || !previous.hasSameContent(it)
+        }.mapTo(HashSet()) { it.id }
+    }
+
+    fun hasSameDocumentIds(documents: List<DocumentSnapshot>): Boolean {
+        return this.documents.size == documents.size &&
+                this.documents.indices.all { this.documents[it].id == documents[it].id }
+    }
+
+    companion object {
+        suspend fun <T : Any> create(
+            documents: List<DocumentSnapshot>, documentsMapper: DocumentsMapper<T>, loadSize: Int = Int.MAX_VALUE
+        ): CachedPage<T> {
+            val bounds = if (documents.isNotEmpty() && documents.size >= loadSize) {
+                PageBounds(documents.first(), documents.last())
+            } else null
+            return CachedPage(documents, documentsMapper.map(documents), bounds)
+        }
+    }
+}
+
+/**
+ * Load a page of the query, from the [pageCache] if available.
+ * The page is observed in [scope] with a snapshot listener. On change, the cached page is updated
+ * in place with the [DocumentChange]s and the source is invalidated. A listener error after the page
+ * was loaded is only logged.
+ *
+ * A cached page with [PageBounds] is observed with [boundedQuery]. When a page just loaded with the limit
+ * of [query] loses documents pushed out by an insertion, it is read again once with [boundedQuery]
+ * before being updated.
+ */
+internal suspend fun <T : Any> PagingSource<*, T>.loadWithPageCache(
+    query: Query,
+    boundedQuery: (PageBounds) -> Query,
+    pageCache: QueryPageCache<T>,
+    cacheKey: PageCacheKey,
+    scope: CoroutineScope,
+    documentsMapper: DocumentsMapper<T>
+): Result<CachedPage<T>> {
+    val cached = pageCache[cacheKey]
+    val firstPage = CompletableDeferred<CachedPage<T>>()
+    if (cached != null) {
+        firstPage.complete(cached)
+    }
+    scope.launch {
+        var page = cached
+        var isFirstSnapshot = true
+        val cachedBounds = cached?.bounds
+        val observedQuery = if (cachedBounds != null) boundedQuery(cachedBounds) else query
+        try {
+            // keep all the snapshots, changes are relative to the previous one
+            observedQuery.asSnapshotFlow(Channel.UNLIMITED).filterSnapshots().collect { snapshot ->
+                val previous = page
+                if (previous == null) {
+                    val loaded = CachedPage.create(snapshot.documents, documentsMapper, cacheKey.loadSize)
+                    pageCache[cacheKey] = loaded
+                    page = loaded
+                    firstPage.complete(loaded)
+                } else {
+                    val bounds = previous.bounds
+                    var documents = snapshot.documents
+                    val changedIds = if (isFirstSnapshot) {
+                        // compare with the cached page
+                        previous.changedIds(documents)
+                    } else if (bounds != null && observedQuery === query && !previous.hasSameDocumentIds(documents)) {
+                        // the limit moved documents between the page and the next one, keep the page bounds
+                        documents = boundedQuery(bounds).get().await().documents
+                        previous.changedIds(documents)
+                    } else {
+                        snapshot.documentChanges
+                            .filter { it.type != DocumentChange.Type.REMOVED }
+                            .mapTo(HashSet()) { it.document.id }
+                    }
+                    if (changedIds.isNotEmpty() || !previous.hasSameDocumentIds(documents)) {
+                        val updated = previous.update(documents, changedIds, documentsMapper)
+                        pageCache[cacheKey] = updated
+                        page = updated
+                        invalidate()
+                    }
+                }
+                isFirstSnapshot = false
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Timber.e(e, "Error while executing firestore query")
+            // keep serving the loaded page, invalidating would fail the same way in the next generation
+            firstPage.completeExceptionally(e)
+        }
+    }
+    return try {
+        Result.success(firstPage.await())
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        Result.failure(e)
+    }
+}
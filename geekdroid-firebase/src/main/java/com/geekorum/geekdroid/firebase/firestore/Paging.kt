@@ -21,55 +21,140 @@
  */
 package com.geekorum.geekdroid.firebase.firestore
 
-import androidx.collection.SparseArrayCompat
 import androidx.paging.PagingSource
 import androidx.paging.PagingState
 import com.google.firebase.firestore.DocumentReference
 import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.MetadataChanges
 import com.google.firebase.firestore.Query
+import com.google.firebase.firestore.QuerySnapshot
+import com.google.firebase.firestore.Source
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.DisposableHandle
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
 import kotlinx.coroutines.cancel
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.awaitClose
-import kotlinx.coroutines.channels.onFailure
-import kotlinx.coroutines.channels.trySendBlocking
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.buffer
 import kotlinx.coroutines.flow.callbackFlow
 import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.drop
+import kotlinx.coroutines.flow.dropWhile
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.flow.shareIn
 import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.tasks.await
 import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.coroutines.coroutineContext
 import kotlin.reflect.KClass
 
-fun <T: Any> QueryPagingSource(query: Query, type: KClass<T>, validatePageKey: (DocumentSnapshot) -> Boolean = { true }): QueryPagingSource<T> {
+fun <T: Any> QueryPagingSource(
+    query: Query, type: KClass<T>,
+    validatePageKey: (DocumentSnapshot) -> Boolean = { true },
+    loadStrategy: LoadStrategy = LoadStrategy.SNAPSHOT_LISTENER_PER_PAGE,
+    pageCache: QueryPageCache<T>? = null,
+    refreshAtAnchor: Boolean = false,
+    mappingOptions: MappingOptions = MappingOptions(),
+    mappingCache: DocumentMappingCache<T>? = null,
+    maxPages: Int = Int.MAX_VALUE,
+    cursorValues: ((DocumentSnapshot) -> List<Any?>)? = null,
+): QueryPagingSource<T> {
     return QueryPagingSource(
         query,
-        documentMapper = {
-            it.toObject(type.java)
-        },
-        validatePageKey = validatePageKey
+        documentMapper = documentMapperFor(type),
+        validatePageKey = validatePageKey,
+        loadStrategy = loadStrategy,
+        pageCache = pageCache,
+        refreshAtAnchor = refreshAtAnchor,
+        mappingOptions = mappingOptions,
+        mappingCache = mappingCache,
+        maxPages = maxPages,
+        cursorValues = cursorValues,
     )
 }
 
 /**
- * You must provide a query with a valid OrderBy clause or a Collection
+ * How a [QueryPagingSource] loads its pages and detects changes to invalidate itself.
+ */
+enum class LoadStrategy {
+    /**
+     * Each page is loaded and observed with its own snapshot listener.
+     * All changes are detected but there is a live listener per loaded page.
+     */
+    SNAPSHOT_LISTENER_PER_PAGE,
+
+    /**
+     * Each page is loaded with a single get(). Only one snapshot listener detects changes, on the range
+     * of the documents loaded so far. It is registered again on the extended range after each page,
+     * which reads the whole range again: prefer it for lists with a few pages.
+     */
+    GET_WITH_SINGLE_LISTENER,
+
+    /**
+     * Each page is first read from the Firestore local cache and displayed without waiting for the network.
+     * A snapshot listener per page invalidates the source when the server data differs from the cache.
+     * Pages missing from the cache are loaded like [SNAPSHOT_LISTENER_PER_PAGE].
+     */
+    CACHE_FIRST,
+}
+
+/**
+ * You must provide a query with a valid OrderBy clause or a Collection.
+ *
+ * When [refreshAtAnchor] is set, an invalidated source reloads from the page closest to the last
+ * accessed position instead of the start of the query. The pages before it are then loaded with
+ * [Query.limitToLast], which requires an explicit OrderBy clause: don't set it for a Collection.
+ * Otherwise an invalidated source reloads from the start of the query. Pages dropped because of
+ * PagingConfig.maxSize are also loaded again with [Query.limitToLast].
+ *
+ * Before loading after a [DocumentCursor.Snapshot] key, the key document is checked with [validatePageKey].
+ * If it is invalid, a refresh reloads from the start of the query, and an append or prepend
+ * returns an empty page without next or previous key, which ends the pagination in that direction.
+ *
+ * Each loaded page keeps a snapshot listener. Set [maxPages] to only keep the listeners of the last
+ * loaded pages, in the direction of the load. It should be at least PagingConfig.maxSize / pageSize,
+ * otherwise changes in pages still displayed are not detected.
  */
 class QueryPagingSource<T: Any>(
     private val query: Query,
+    /** Check the document of a [DocumentCursor.Snapshot] key. Not called for [DocumentCursor.FieldValues] keys */
     private val validatePageKey: (DocumentSnapshot) -> Boolean = { true },
-    private val documentMapper: (DocumentSnapshot) -> T?,
+    private val loadStrategy: LoadStrategy = LoadStrategy.SNAPSHOT_LISTENER_PER_PAGE,
+    /** Cache updating the pages in place on changes. Only used with [LoadStrategy.SNAPSHOT_LISTENER_PER_PAGE] */
+    private val pageCache: QueryPageCache<T>? = null,
+    private val refreshAtAnchor: Boolean = false,
+    mappingOptions: MappingOptions = MappingOptions(),
+    /** Cache of the mapped objects, kept across invalidations */
+    mappingCache: DocumentMappingCache<T>? = null,
+    maxPages: Int = Int.MAX_VALUE,
+    /**
+     * Values of a document for the OrderBy clauses of the query, to use compact [DocumentCursor.FieldValues] keys.
+     * The query must be ordered by FieldPath.documentId() last, see [DocumentCursor.FieldValues].
+     * [validatePageKey] is not called with these keys, as they don't keep the document.
+     */
+    private val cursorValues: ((DocumentSnapshot) -> List<Any?>)? = null,
+    documentMapper: (DocumentSnapshot) -> T?,
 ) : PagingSource<QueryPagingSource.Key, T>() {
     private val sourceScope = CoroutineScope(Job())
+    private val documentsMapper = DocumentsMapper(mappingOptions, mappingCache, documentMapper)
+    private val pageListeners = PageListenersWindow(maxPages)
+    // documents observed by the listener of LoadStrategy.GET_WITH_SINGLE_LISTENER
+    private val loadedRange = LoadedRange()
 
-    private var lastNextKey: Key? = null
     private var cancelOnCompletion: DisposableHandle? = null
 
     init {
@@ -84,73 +169,64 @@ class QueryPagingSource<T: Any>(
                 sourceScope.cancel()
             }
         }
-        var query = this.query
-            .limit(params.loadSize.toLong())
+        var key = params.key
+        val keyDocument = (key?.cursor as? DocumentCursor.Snapshot)?.documentSnapshot
+        if (keyDocument != null && !validatePageKey(keyDocument)) {
+            if (params !is LoadParams.Refresh) {
+                Timber.w("Query has invalid boundary key, return empty results")
+                return LoadResult.Page(
+                    data = emptyList(),
+                    prevKey = null,
+                    nextKey = null)
+            }
+            // reload from the start of the query
+            key = null
+        }
+        val query = try {
+            makeQuery(key, params.loadSize)
+        } catch (e: RuntimeException) {
+            return LoadResult.Error(e)
+        }
 
-        var hasInvalidPreviousKey = false
-        var hasInvalidNextKey = false
-        params.key?.let { key ->
-            query = when (params) {
-                is LoadParams.Prepend -> {
-                    (key as? Key.StartAtDocumentKey)?.documentSnapshot?.let {
-                        if (!validatePageKey(it)) {
-                            hasInvalidPreviousKey = true
-                            query
-                        } else {
-                            query.startAfter(it)
-                        }
-                    } ?: query
-                }
-                is LoadParams.Append -> {
-                    (key as Key.StartAtDocumentKey).documentSnapshot.let {
-                        if (!validatePageKey(it)) {
-                            hasInvalidNextKey = true
-                            query
-                        } else {
-                            query.startAfter(it)
-                        }
+        val pageJob = Job(sourceScope.coroutineContext[Job])
+        val loadScope = CoroutineScope(coroutineContext + pageJob)
+        return loadPage(params, key, query, loadScope).also {
+            pageListeners.onLoadResult(pageJob, params, it)
+        }
+    }
+
+    private suspend fun loadPage(params: LoadParams<Key>, key: Key?, query: Query, loadScope: CoroutineScope): LoadResult<Key, T> {
+        val page: CachedPage<T>
+        if (pageCache != null && loadStrategy == LoadStrategy.SNAPSHOT_LISTENER_PER_PAGE) {
+            val cacheKey = key.toPageCacheKey(params.loadSize)
+            page = loadWithPageCache(query, { makeBoundedQuery(key, it) }, pageCache, cacheKey, loadScope, documentsMapper)
+                .getOrElse { return LoadResult.Error(it) }
+        } else {
+            val result = when (loadStrategy) {
+                LoadStrategy.SNAPSHOT_LISTENER_PER_PAGE -> loadAndInvalidateOnChange(query, loadScope)
+                LoadStrategy.CACHE_FIRST -> loadFromCacheFirst(query, loadScope)
+                LoadStrategy.GET_WITH_SINGLE_LISTENER -> loadOnce(query).also {
+                    if (it is SnapshotsOrError.Snapshots) {
+                        observeLoadedRange(params, key, query, it.snapshots)
                     }
                 }
-                is LoadParams.Refresh -> query
             }
-        }
-        if (params is LoadParams.Refresh) {
-            lastNextKey = Key.InitialKey
-        }
-
-        if (hasInvalidPreviousKey || hasInvalidNextKey) {
-            Timber.w("Query has invalid boundary key, return empty results")
-            val prevKey = lastNextKey.takeIf { hasInvalidNextKey && it !is Key.InitialKey }
-            return LoadResult.Page(
-                data = emptyList(),
-                prevKey = prevKey,
-                nextKey = null)
-        }
-        // share the query between 2 coroutines
-        val dataChannel: SharedFlow<SnapshotsOrError> = query.asDocumentFlow()
-            .map {
-                @Suppress("USELESS_CAST") // we need it to cast to correct type in catch
-                SnapshotsOrError.Snapshots(it) as SnapshotsOrError
-            }.catch {
-                Timber.e(it, "Error while executing firestore query")
-                emit(SnapshotsOrError.Error(it))
+            page = when (result) {
+                is SnapshotsOrError.Error -> return LoadResult.Error(result.exception)
+                is SnapshotsOrError.Snapshots -> CachedPage.create(result.snapshots, documentsMapper)
             }
-            .shareIn(CoroutineScope(coroutineContext + sourceScope.coroutineContext), SharingStarted.Lazily)
-        // first one wait for 2 updates and invalidate the source
-        dataChannel.take(2)
-            .onCompletion { invalidate() }
-            .launchIn(CoroutineScope(coroutineContext + sourceScope.coroutineContext))
-        // second one make the result
-        val data = when (val it = dataChannel.first()) {
-            is SnapshotsOrError.Error -> return LoadResult.Error(it.exception)
-            is SnapshotsOrError.Snapshots -> it.snapshots
-        }
-        val objects = data.mapNotNull { documentMapper(it) }
-        val prevKey = lastNextKey.takeIf { it !is Key.InitialKey }
-        val nextKey = data.lastOrNull()?.let { Key.StartAtDocumentKey(it) }
-        lastNextKey = nextKey
+        }
+        val (firstDocument, lastDocument) = page.edgeDocuments(keyAtEnd = key is Key.EndBeforeDocumentKey)
+        val prevKey = when {
+            key == null || key is Key.InitialKey -> null
+            // reached the start of the query
+            params is LoadParams.Prepend && !page.isFull(params.loadSize) -> null
+            else -> (firstDocument?.let { DocumentCursor.of(it, cursorValues) } ?: (key as? Key.RefreshAtDocumentKey)?.cursor)
+                ?.let { Key.EndBeforeDocumentKey(it) }
+        }
+        val nextKey = lastDocument?.let { Key.StartAtDocumentKey(DocumentCursor.of(it, cursorValues)) }
         return LoadResult.Page(
-            data = objects,
+            data = page.items,
             prevKey = prevKey,
             nextKey = nextKey
         ).also {
@@ -158,33 +234,171 @@ class QueryPagingSource<T: Any>(
         }
     }
 
-    override fun getRefreshKey(state: PagingState<Key, T>): Key? = null
+    private fun makeQuery(key: Key?, loadSize: Int): Query {
+        val limit = loadSize.toLong()
+        return when (key) {
+            null, Key.InitialKey -> query.limit(limit)
+            is Key.StartAtDocumentKey -> query.startAfterCursor(key.cursor).limit(limit)
+            is Key.RefreshAtDocumentKey -> query.startAtCursor(key.cursor).limit(limit)
+            is Key.EndBeforeDocumentKey -> query.endBeforeCursor(key.cursor).limitToLast(limit)
+        }
+    }
+
+    /**
+     * The query of a page already loaded, between its key and its bound
+     */
+    private fun makeBoundedQuery(key: Key?, bounds: PageBounds): Query {
+        return when (key) {
+            null, Key.InitialKey -> query.endAt(bounds.last)
+            is Key.StartAtDocumentKey -> query.startAfterCursor(key.cursor).endAt(bounds.last)
+            is Key.RefreshAtDocumentKey -> query.startAtCursor(key.cursor).endAt(bounds.last)
+            is Key.EndBeforeDocumentKey -> query.startAt(bounds.first).endBeforeCursor(key.cursor)
+        }
+    }
+
+    /**
+     * Extend the loaded range with the page loaded with [pageQuery], and register the single listener
+     * of the source again on the whole range. The listener of the previous range is removed.
+     */
+    private suspend fun observeLoadedRange(
+        params: LoadParams<Key>, key: Key?, pageQuery: Query, documents: List<DocumentSnapshot>
+    ) {
+        val range = loadedRange
+        val loadContext = coroutineContext
+        synchronized(range) {
+            val reachedEnd = documents.size < params.loadSize
+            when (params) {
+                is LoadParams.Refresh -> {
+                    range.first = documents.firstOrNull()
+                    range.last = documents.lastOrNull()
+                    range.fromQueryStart = key == null || key == Key.InitialKey
+                    range.toQueryEnd = reachedEnd
+                }
+                is LoadParams.Append -> {
+                    range.last = documents.lastOrNull() ?: range.last
+                    range.toQueryEnd = reachedEnd
+                }
+                is LoadParams.Prepend -> {
+                    range.first = documents.firstOrNull() ?: range.first
+                    range.fromQueryStart = reachedEnd
+                }
+            }
+            val first = range.first
+            val last = range.last
+            val observedQuery = when {
+                // nothing loaded yet, observe where the page should be
+                first == null || last == null -> pageQuery
+                else -> {
+                    val start = if (range.fromQueryStart) query else query.startAt(first)
+                    if (range.toQueryEnd) start else start.endAt(last)
+                }
+            }
+            range.listener?.cancel()
+            // the only listener of the source, not tied to the page
+            val listenerJob = Job(sourceScope.coroutineContext[Job])
+            invalidateOnChange(observedQuery, CoroutineScope(loadContext + listenerJob))
+            range.listener = listenerJob
+        }
+    }
+
+    override fun getRefreshKey(state: PagingState<Key, T>): Key? {
+        if (!refreshAtAnchor) {
+            return null
+        }
+        val anchorPosition = state.anchorPosition ?: return null
+        // start before the anchor so that the refreshed page covers the viewport
+        val position = (anchorPosition - state.config.initialLoadSize / 2).coerceAtLeast(0)
+        val prevKey = state.closestPageToPosition(position)?.prevKey as? Key.EndBeforeDocumentKey
+        return prevKey?.let { Key.RefreshAtDocumentKey(it.cursor) }
+    }
 
     sealed class Key {
+        /** The document bounding the page, if any */
+        open val cursor: DocumentCursor? get() = null
+
         data object InitialKey : Key()
-        data class StartAtDocumentKey(val documentSnapshot: DocumentSnapshot) : Key()
+        /** Page starting after [cursor] */
+        data class StartAtDocumentKey(override val cursor: DocumentCursor) : Key()
+        /** Page starting at [cursor] */
+        data class RefreshAtDocumentKey(override val cursor: DocumentCursor) : Key()
+        /** Page ending before [cursor] */
+        data class EndBeforeDocumentKey(override val cursor: DocumentCursor) : Key()
+    }
+
+    private fun Key?.toPageCacheKey(loadSize: Int): PageCacheKey = when (this) {
+        null, Key.InitialKey -> PageCacheKey(0, PageBoundary.START, null, loadSize)
+        is Key.StartAtDocumentKey -> PageCacheKey(0, PageBoundary.START_AFTER, cursor.documentId, loadSize)
+        is Key.RefreshAtDocumentKey -> PageCacheKey(0, PageBoundary.START_AT, cursor.documentId, loadSize)
+        is Key.EndBeforeDocumentKey -> PageCacheKey(0, PageBoundary.END_BEFORE, cursor.documentId, loadSize)
     }
 }
 
 
-fun <T: Any> ConcatQueriesPagingSource(queries: List<Query>, type: KClass<T>): ConcatQueriesPagingSource<T> {
-    return ConcatQueriesPagingSource(queries,  documentMapper = {
-        it.toObject(type.java)
-    })
+fun <T: Any> ConcatQueriesPagingSource(
+    queries: List<Query>, type: KClass<T>,
+    pageCache: QueryPageCache<T>? = null,
+    refreshAtAnchor: Boolean = false,
+    prefetchNextQuery: Boolean = false,
+    mappingOptions: MappingOptions = MappingOptions(),
+    mappingCache: DocumentMappingCache<T>? = null,
+    maxPages: Int = Int.MAX_VALUE,
+    cursorValues: ((DocumentSnapshot) -> List<Any?>)? = null,
+): ConcatQueriesPagingSource<T> {
+    return ConcatQueriesPagingSource(queries,
+        pageCache = pageCache,
+        refreshAtAnchor = refreshAtAnchor,
+        prefetchNextQuery = prefetchNextQuery,
+        mappingOptions = mappingOptions,
+        mappingCache = mappingCache,
+        maxPages = maxPages,
+        cursorValues = cursorValues,
+        documentMapper = documentMapperFor(type))
 }
 
 /**
- * You must provide queries with a valid OrderBy clause or a Collection
+ * You must provide queries with a valid OrderBy clause or a Collection.
+ *
+ * When [refreshAtAnchor] is set, an invalidated source reloads from the page closest to the last
+ * accessed position instead of the start of the first query. The pages before it are then loaded with
+ * [Query.limitToLast], which requires an explicit OrderBy clause: don't set it for Collections.
+ * Otherwise an invalidated source reloads from the start of the first query. Pages dropped because of
+ * PagingConfig.maxSize are also loaded again with [Query.limitToLast].
+ *
+ * When [prefetchNextQuery] is set, the first page of the next query is fetched as soon as
+ * the current query is exhausted, without waiting for Paging to request it.
+ *
+ * A document returned by several queries appears several times. Use [MergeQueriesPagingSource]
+ * for queries which may return the same documents.
+ *
+ * Each loaded page keeps a snapshot listener. Set [maxPages] to only keep the listeners of the last
+ * loaded pages, in the direction of the load. It should be at least PagingConfig.maxSize / pageSize,
+ * otherwise changes in pages still displayed are not detected.
  */
 class ConcatQueriesPagingSource<T: Any>(
     private val queries: List<Query>,
-    private val documentMapper: (DocumentSnapshot) -> T?
+    /** Cache updating the pages in place on changes */
+    private val pageCache: QueryPageCache<T>? = null,
+    private val refreshAtAnchor: Boolean = false,
+    private val prefetchNextQuery: Boolean = false,
+    mappingOptions: MappingOptions = MappingOptions(),
+    /** Cache of the mapped objects, kept across invalidations */
+    mappingCache: DocumentMappingCache<T>? = null,
+    maxPages: Int = Int.MAX_VALUE,
+    /**
+     * Values of a document for the OrderBy clauses of its query, to use compact [DocumentCursor.FieldValues] keys.
+     * The queries must have the same OrderBy clauses, ending with FieldPath.documentId(),
+     * see [DocumentCursor.FieldValues].
+     */
+    private val cursorValues: ((DocumentSnapshot) -> List<Any?>)? = null,
+    documentMapper: (DocumentSnapshot) -> T?
 ) : PagingSource<ConcatQueriesPagingSource.Key, T>() {
     private val sourceScope =
         CoroutineScope(Job())
+    private val documentsMapper = DocumentsMapper(mappingOptions, mappingCache, documentMapper)
+    private val pageListeners = PageListenersWindow(maxPages)
 
-    private val queriesNextKeys = SparseArrayCompat<MutableList<QueryKey>>()
     private var cancelOnCompletion: DisposableHandle? = null
+    private val prefetchedPages = ConcurrentHashMap<Key, PrefetchedPage<T>>()
 
     init {
         registerInvalidatedCallback {
@@ -198,194 +412,429 @@ class ConcatQueriesPagingSource<T: Any>(
                 sourceScope.cancel()
             }
         }
-        val currentQueryIdx = params.key?.queryIdx ?: 0
-        if (params is LoadParams.Refresh) {
-            queriesNextKeys.putIfAbsent(0, mutableListOf())
-            val nextKeys = queriesNextKeys[0]!!
-            nextKeys += QueryKey.InitialKey
-        }
-
-        val query = getQueryForParam(params)
-        // share the query between 2 coroutines
-        val dataChannel: SharedFlow<SnapshotsOrError> = query.asDocumentFlow()
-            .map {
-                @Suppress("USELESS_CAST") // we need it to cast to correct type in catch
-                SnapshotsOrError.Snapshots(it) as SnapshotsOrError
-            }.catch {
-                Timber.e(it, "Error while executing firestore query")
-                emit(SnapshotsOrError.Error(it))
+        val key = params.key ?: Key(0, QueryKey.InitialKey)
+        val prefetched = prefetchedPages.remove(key)
+        val prefetchedResult = prefetched?.let {
+            try {
+                it.result.await()
+            } catch (e: CancellationException) {
+                coroutineContext.ensureActive()
+                null
+            }
+        }
+        val loadSize = prefetched?.takeIf { prefetchedResult != null }?.loadSize ?: params.loadSize
+        // the listener of a prefetched page is already running in its job
+        val pageJob = prefetched?.takeIf { prefetchedResult != null }?.job
+            ?: Job(sourceScope.coroutineContext[Job])
+        val loadScope = CoroutineScope(coroutineContext + pageJob)
+        val page = (prefetchedResult ?: loadPage(key, loadSize, loadScope))
+            .getOrElse {
+                pageJob.cancel()
+                return LoadResult.Error(it)
             }
-            .shareIn(CoroutineScope(coroutineContext + sourceScope.coroutineContext), SharingStarted.Lazily)
-        // first one wait for 2 updates and invalidate the source
-        dataChannel.take(2)
-            .onCompletion { invalidate() }
-            .launchIn(CoroutineScope(coroutineContext + sourceScope.coroutineContext))
-
-        // second one make the result
-        val data = when (val it = dataChannel.first()) {
-            is SnapshotsOrError.Error -> return LoadResult.Error(it.exception)
-            is SnapshotsOrError.Snapshots -> it.snapshots
-        }
-        // TODO filter unique?
-        val objects = data.mapNotNull { documentMapper(it) }
-
-        val prevKey = makePrevKey(params.key)
-        val nextKey = makeNextKey(currentQueryIdx, data.lastOrNull())
-        updateQueryNextKeys( nextKey)
+
+        val keyAtEnd = key.queryKey == QueryKey.EndKey || key.queryKey is QueryKey.EndBeforeDocumentKey
+        val (firstDocument, lastDocument) = page.edgeDocuments(keyAtEnd)
+        val queryExhausted = params !is LoadParams.Prepend && !page.isFull(loadSize)
+        val prevKey = makePrevKey(key, firstDocument, page.isFull(loadSize))
+        val nextKey = makeNextKey(key.queryIdx, lastDocument, queryExhausted)
+        if (prefetchNextQuery && queryExhausted && nextKey != null) {
+            prefetch(nextKey, params.loadSize)
+        }
         return LoadResult.Page(
-            data = objects,
+            data = page.items,
             prevKey = prevKey,
             nextKey = nextKey,
         ).also {
             Timber.v("load params $params prevkey ${it.prevKey} nextKey ${it.nextKey}")
+            pageListeners.onLoadResult(pageJob, params, it)
         }
     }
 
-    private fun getQueryForParam(params: LoadParams<Key>): Query {
-        val resultQuery = when (params) {
-            is LoadParams.Prepend -> {
-                val queryIdx = params.key.queryIdx
-                val query = queries[queryIdx]
-                (params.key.queryKey as? QueryKey.StartAtDocumentKey)?.documentSnapshot?.let {
-                    query.startAfter(it)
-                } ?: query
-            }
-            is LoadParams.Append -> {
-                val queryIdx = params.key.queryIdx
-                val query = queries[queryIdx]
-                (params.key.queryKey as? QueryKey.StartAtDocumentKey)?.documentSnapshot?.let {
-                    query.startAfter(it)
-                } ?: query
-            }
-            is LoadParams.Refresh -> {
-                val queryIdx = params.key?.queryIdx ?: 0
-                queries[queryIdx]
+    private suspend fun loadPage(key: Key, loadSize: Int, scope: CoroutineScope): Result<CachedPage<T>> {
+        val query = try {
+            makeQuery(key, loadSize)
+        } catch (e: RuntimeException) {
+            return Result.failure(e)
+        }
+        return if (pageCache != null) {
+            loadWithPageCache(query, { makeBoundedQuery(key, it) }, pageCache, key.toPageCacheKey(loadSize), scope,
+                documentsMapper)
+        } else {
+            when (val it = loadAndInvalidateOnChange(query, scope)) {
+                is SnapshotsOrError.Error -> Result.failure(it.exception)
+                is SnapshotsOrError.Snapshots -> Result.success(CachedPage.create(it.snapshots, documentsMapper))
             }
         }
-        return resultQuery.limit(params.loadSize.toLong())
     }
 
-    private fun updateQueryNextKeys(nextKey: Key?) {
-        if (nextKey != null) {
-            queriesNextKeys.putIfAbsent(nextKey.queryIdx, mutableListOf())
-            val nextQueryKeys = queriesNextKeys[nextKey.queryIdx]!!
-            nextQueryKeys += nextKey.queryKey
-            while (nextQueryKeys.size > 2 )
-                nextQueryKeys.removeAt(0)
+    /**
+     * Start loading the page for [key]. It is kept until requested or the source is invalidated.
+     */
+    private fun prefetch(key: Key, loadSize: Int) {
+        val job = Job(sourceScope.coroutineContext[Job])
+        val scope = CoroutineScope(sourceScope.coroutineContext + job)
+        val result = scope.async { loadPage(key, loadSize, scope) }
+        prefetchedPages[key] = PrefetchedPage(loadSize, job, result)
+    }
+
+    private fun makeQuery(key: Key, loadSize: Int): Query {
+        val query = queries[key.queryIdx]
+        val limit = loadSize.toLong()
+        return when (val queryKey = key.queryKey) {
+            QueryKey.InitialKey -> query.limit(limit)
+            QueryKey.EndKey -> query.limitToLast(limit)
+            is QueryKey.StartAtDocumentKey -> query.startAfterCursor(queryKey.cursor).limit(limit)
+            is QueryKey.RefreshAtDocumentKey -> query.startAtCursor(queryKey.cursor).limit(limit)
+            is QueryKey.EndBeforeDocumentKey -> query.endBeforeCursor(queryKey.cursor).limitToLast(limit)
         }
     }
 
-    private fun makePrevKey(currentKey: Key?) : Key? {
-        val currentQueryIdx = currentKey?.queryIdx ?: 0
-        val nextKeys = queriesNextKeys[currentQueryIdx] ?: emptyList()
-        val candidate = nextKeys.lastOrNull()
+    /**
+     * The query of a page already loaded, between its key and its bound
+     */
+    private fun makeBoundedQuery(key: Key, bounds: PageBounds): Query {
+        val query = queries[key.queryIdx]
+        return when (val queryKey = key.queryKey) {
+            QueryKey.InitialKey -> query.endAt(bounds.last)
+            QueryKey.EndKey -> query.startAt(bounds.first)
+            is QueryKey.StartAtDocumentKey -> query.startAfterCursor(queryKey.cursor).endAt(bounds.last)
+            is QueryKey.RefreshAtDocumentKey -> query.startAtCursor(queryKey.cursor).endAt(bounds.last)
+            is QueryKey.EndBeforeDocumentKey -> query.startAt(bounds.first).endBeforeCursor(queryKey.cursor)
+        }
+    }
 
+    private fun makePrevKey(currentKey: Key, firstDocument: DocumentSnapshot?, isFull: Boolean) : Key? {
+        val reachedQueryStart = when (currentKey.queryKey) {
+            QueryKey.InitialKey -> true
+            QueryKey.EndKey, is QueryKey.EndBeforeDocumentKey -> !isFull
+            else -> false
+        }
         return when {
-            // refresh ? maybe explicitly check for refresh
-            currentKey == null -> null
-            // last of query but we have at least another one
-            candidate == currentKey.queryKey && nextKeys.size >= 2 -> {
-                Key(currentQueryIdx, nextKeys[nextKeys.size - 2])
-            }
-            // last of query get to previous query
-            candidate == currentKey.queryKey && currentQueryIdx > 0 -> {
-                val previousQueryKey = queriesNextKeys[currentQueryIdx - 1]!!.last()
-                Key(currentQueryIdx - 1, previousQueryKey)
+            // get to the end of the previous query
+            reachedQueryStart && currentKey.queryIdx > 0 -> Key(currentKey.queryIdx - 1, QueryKey.EndKey)
+            reachedQueryStart -> null
+            else -> {
+                val refreshCursor = (currentKey.queryKey as? QueryKey.RefreshAtDocumentKey)?.cursor
+                (firstDocument?.let { DocumentCursor.of(it, cursorValues) } ?: refreshCursor)?.let {
+                    Key(currentKey.queryIdx, QueryKey.EndBeforeDocumentKey(it))
+                }
             }
-            candidate != null -> Key(currentQueryIdx, candidate)
-            else -> null
         }
     }
 
-    private fun makeNextKey(currentQueryIdx: Int, documentSnapshot: DocumentSnapshot?) : Key? {
+    private fun makeNextKey(currentQueryIdx: Int, documentSnapshot: DocumentSnapshot?, queryExhausted: Boolean) : Key? {
         val nextQueryIdx = currentQueryIdx + 1
         return when {
-            documentSnapshot != null -> Key(currentQueryIdx, QueryKey.StartAtDocumentKey(documentSnapshot))
+            documentSnapshot != null && !queryExhausted ->
+                Key(currentQueryIdx, QueryKey.StartAtDocumentKey(DocumentCursor.of(documentSnapshot, cursorValues)))
             nextQueryIdx < queries.size -> Key(nextQueryIdx, QueryKey.InitialKey)
             else -> null
         }
     }
 
-    override fun getRefreshKey(state: PagingState<Key, T>): Key? = null
+    override fun getRefreshKey(state: PagingState<Key, T>): Key? {
+        if (!refreshAtAnchor) {
+            return null
+        }
+        val anchorPosition = state.anchorPosition ?: return null
+        // start before the anchor so that the refreshed page covers the viewport
+        val position = (anchorPosition - state.config.initialLoadSize / 2).coerceAtLeast(0)
+        val prevKey = state.closestPageToPosition(position)?.prevKey ?: return null
+        return when (val queryKey = prevKey.queryKey) {
+            is QueryKey.EndBeforeDocumentKey -> Key(prevKey.queryIdx, QueryKey.RefreshAtDocumentKey(queryKey.cursor))
+            // the page was at the start of the next query
+            QueryKey.EndKey -> Key(prevKey.queryIdx + 1, QueryKey.InitialKey)
+            else -> null
+        }
+    }
 
     data class Key(val queryIdx: Int, val queryKey: QueryKey)
 
+    private class PrefetchedPage<T>(
+        val loadSize: Int,
+        val job: Job,
+        val result: Deferred<Result<CachedPage<T>>>
+    )
+
     sealed class QueryKey {
         object InitialKey : QueryKey()
-        data class StartAtDocumentKey(val documentSnapshot: DocumentSnapshot) : QueryKey()
+        /** Last page of the query */
+        object EndKey : QueryKey()
+        /** Page starting after [cursor] */
+        data class StartAtDocumentKey(val cursor: DocumentCursor) : QueryKey()
+        /** Page starting at [cursor] */
+        data class RefreshAtDocumentKey(val cursor: DocumentCursor) : QueryKey()
+        /** Page ending before [cursor] */
+        data class EndBeforeDocumentKey(val cursor: DocumentCursor) : QueryKey()
+    }
+
+    private fun Key.toPageCacheKey(loadSize: Int): PageCacheKey = when (val queryKey = queryKey) {
+        QueryKey.InitialKey -> PageCacheKey(queryIdx, PageBoundary.START, null, loadSize)
+        QueryKey.EndKey -> PageCacheKey(queryIdx, PageBoundary.END, null, loadSize)
+        is QueryKey.StartAtDocumentKey -> PageCacheKey(queryIdx, PageBoundary.START_AFTER, queryKey.cursor.documentId, loadSize)
+        is QueryKey.RefreshAtDocumentKey -> PageCacheKey(queryIdx, PageBoundary.START_AT, queryKey.cursor.documentId, loadSize)
+        is QueryKey.EndBeforeDocumentKey -> PageCacheKey(queryIdx, PageBoundary.END_BEFORE, queryKey.cursor.documentId, loadSize)
     }
 }
 
 
-private sealed class SnapshotsOrError {
-    data class Snapshots(val snapshots: List<DocumentSnapshot>) : SnapshotsOrError()
-    data class Error(val exception: Throwable): SnapshotsOrError()
+/**
+ * The documents loaded by a source, from [first] to [last], and the job of the [listener] observing them.
+ * When [fromQueryStart] or [toQueryEnd] is set, the range is not bounded on that side, so that
+ * the documents inserted before the start or after the end of the query are in it.
+ */
+private class LoadedRange {
+    var first: DocumentSnapshot? = null
+    var last: DocumentSnapshot? = null
+    var fromQueryStart = false
+    var toQueryEnd = false
+    var listener: Job? = null
 }
 
+/**
+ * Jobs of the snapshot listeners of the loaded pages.
+ * Only the jobs of the last [maxPages] pages loaded are kept, the others are cancelled.
+ */
+internal class PageListenersWindow(private val maxPages: Int) {
+    private val jobs = ArrayDeque<Job>()
 
-fun  <T : Any> Query.asFlow(type: KClass<T>) : Flow<List<T>> = callbackFlow {
-    val registration = addSnapshotListener { snapshot, firestoreException ->
-        if (firestoreException != null) {
-            throw firestoreException
+    init {
+        require(maxPages > 0) { "maxPages must be positive" }
+    }
+
+    @Synchronized
+    fun onLoadResult(pageJob: Job, params: PagingSource.LoadParams<*>, result: PagingSource.LoadResult<*, *>) {
+        if (result !is PagingSource.LoadResult.Page) {
+            pageJob.cancel()
+            return
         }
-        snapshot?.toObjects(type.java)?.let { objects ->
-            trySendBlocking(objects).onFailure { throw it!! }
+        if (maxPages == Int.MAX_VALUE) {
+            return
+        }
+        if (params is PagingSource.LoadParams.Prepend) {
+            jobs.addFirst(pageJob)
+            while (jobs.size > maxPages) {
+                jobs.removeLast().cancel()
+            }
+        } else {
+            jobs.addLast(pageJob)
+            while (jobs.size > maxPages) {
+                jobs.removeFirst().cancel()
+            }
         }
     }
-    awaitClose { registration.remove() }
 }
 
-fun Query.asDocumentFlow() : Flow<List<DocumentSnapshot>> = callbackFlow {
-    val registration = addSnapshotListener { snapshot, firestoreException ->
-        if (firestoreException != null) {
-            close(firestoreException)
+internal sealed class SnapshotsOrError {
+    data class Snapshots(val snapshots: List<DocumentSnapshot>) : SnapshotsOrError()
+    data class Error(val exception: Throwable): SnapshotsOrError()
+}
+
+/**
+ * Load the documents of the query with a snapshot listener, which is kept in [scope] to
+ * invalidate the source on the next update.
+ */
+internal suspend fun PagingSource<*, *>.loadAndInvalidateOnChange(query: Query, scope: CoroutineScope): SnapshotsOrError {
+    // share the query between 2 coroutines
+    val dataChannel: SharedFlow<SnapshotsOrError> = query.asSnapshotFlow(Channel.UNLIMITED)
+        // local echoes and cache snapshots confirmed without changes are not updates
+        .filterSnapshots()
+        .map {
+            @Suppress("USELESS_CAST") // we need it to cast to correct type in catch
+            SnapshotsOrError.Snapshots(it.documents) as SnapshotsOrError
+        }.catch {
+            Timber.e(it, "Error while executing firestore query")
+            emit(SnapshotsOrError.Error(it))
         }
-        snapshot?.documents?.let {
-            trySendBlocking(snapshot.documents).onFailure { throw it!! }
+        .shareIn(scope, SharingStarted.Lazily)
+    // first one wait for 2 updates and invalidate the source
+    dataChannel.take(2)
+        .onCompletion { cause ->
+            // the page listener may be cancelled without the source being invalid
+            if (cause !is CancellationException) invalidate()
         }
-    }
-    awaitClose { registration.remove() }
+        .launchIn(scope)
+    // second one make the result
+    return dataChannel.first()
 }
 
+/**
+ * Observe the query in [scope] to invalidate the source on the first update after the initial snapshot.
+ * A listener error doesn't invalidate the source, the next generation would fail the same way.
+ */
+private fun PagingSource<*, *>.invalidateOnChange(query: Query, scope: CoroutineScope) {
+    query.asSnapshotFlow(Channel.UNLIMITED)
+        .filterSnapshots()
+        // the initial snapshot is the state of the query when loaded
+        .drop(1)
+        .take(1)
+        .onEach { invalidate() }
+        .catch { Timber.e(it, "Error while observing firestore query") }
+        .launchIn(scope)
+}
 
-inline fun  <reified T : Any> Query.asFlow() : Flow<List<T>> = when (T::class) {
-    is DocumentSnapshot -> {
-        @Suppress("UNCHECKED_CAST")
-        asDocumentFlow() as Flow<List<T>>
+/**
+ * Load the documents of the query from the local cache, and observe the query in [scope] to invalidate
+ * the source when the server documents differ. If the cache has no documents, load them with
+ * [loadAndInvalidateOnChange].
+ */
+private suspend fun PagingSource<*, *>.loadFromCacheFirst(query: Query, scope: CoroutineScope): SnapshotsOrError {
+    val cached = try {
+        query.get(Source.CACHE).await().documents
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        Timber.d(e, "Unable to read firestore query from cache")
+        emptyList()
     }
-    else -> asFlow(T::class)
+    if (cached.isEmpty()) {
+        return loadAndInvalidateOnChange(query, scope)
+    }
+    query.asSnapshotFlow(Channel.UNLIMITED)
+        .filterSnapshots()
+        .map { it.documents }
+        .dropWhile { it.hasSameContent(cached) }
+        .take(1)
+        .onEach { invalidate() }
+        .catch { Timber.e(it, "Error while observing firestore query") }
+        .launchIn(scope)
+    return SnapshotsOrError.Snapshots(cached)
 }
 
+/**
+ * Load the documents of the query once, without listening to updates.
+ */
+private suspend fun loadOnce(query: Query): SnapshotsOrError {
+    return try {
+        SnapshotsOrError.Snapshots(query.get().await().documents)
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        Timber.e(e, "Error while executing firestore query")
+        SnapshotsOrError.Error(e)
+    }
+}
 
-fun  <T : Any> DocumentReference.asObjectFlow(type: KClass<T>) : Flow<T?> = callbackFlow {
-    val registration = addSnapshotListener { snapshot, firestoreException ->
+
+/**
+ * Observe the query as a flow of lists of objects.
+ * See [asSnapshotFlow] for [bufferCapacity] and [onBufferOverflow]
+ */
+fun  <T : Any> Query.asFlow(
+    type: KClass<T>,
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+) : Flow<List<T>> {
+    val documentMapper = documentMapperFor(type)
+    return asSnapshotFlow(bufferCapacity, onBufferOverflow)
+        .map { snapshot -> snapshot.documents.mapNotNull(documentMapper) }
+}
+
+/**
+ * Observe the query with a snapshot listener.
+ *
+ * The listener never blocks: snapshots are buffered in a buffer of [bufferCapacity] and [onBufferOverflow]
+ * decides what to drop when a slow collector lets it fill up. By default only the latest snapshot is kept.
+ * [BufferOverflow.SUSPEND] is only allowed with [Channel.UNLIMITED].
+ *
+ * Use [MetadataChanges.INCLUDE] for [metadataChanges] to also receive the snapshots where only
+ * the metadata changed, and [filterSnapshots] to filter them.
+ */
+fun Query.asSnapshotFlow(
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+    metadataChanges: MetadataChanges = MetadataChanges.EXCLUDE,
+) : Flow<QuerySnapshot> = callbackFlow {
+    val registration = addSnapshotListener(metadataChanges) { snapshot, firestoreException ->
         if (firestoreException != null) {
             close(firestoreException)
         }
         snapshot?.let {
-            trySendBlocking(snapshot.toObject(type.java)).onFailure { throw it!! }
+            trySend(snapshot)
         }
     }
     awaitClose { registration.remove() }
+}.bufferSnapshots(bufferCapacity, onBufferOverflow)
+
+/**
+ * Observe the documents of the query.
+ * See [asSnapshotFlow] for [bufferCapacity] and [onBufferOverflow]
+ */
+fun Query.asDocumentFlow(
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+) : Flow<List<DocumentSnapshot>> = asSnapshotFlow(bufferCapacity, onBufferOverflow)
+    .map { it.documents }
+
+
+inline fun  <reified T : Any> Query.asFlow(
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+) : Flow<List<T>> = when (T::class) {
+    is DocumentSnapshot -> {
+        @Suppress("UNCHECKED_CAST")
+        asDocumentFlow(bufferCapacity, onBufferOverflow) as Flow<List<T>>
+    }
+    else -> asFlow(T::class, bufferCapacity, onBufferOverflow)
+}
+
+
+/**
+ * Observe the document as a flow of objects.
+ * See [Query.asSnapshotFlow] for [bufferCapacity] and [onBufferOverflow]
+ */
+fun  <T : Any> DocumentReference.asObjectFlow(
+    type: KClass<T>,
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+) : Flow<T?> {
+    val documentMapper = documentMapperFor(type)
+    return asDocumentFlow(bufferCapacity, onBufferOverflow)
+        .map { documentMapper(it) }
 }
 
-fun  DocumentReference.asDocumentFlow() : Flow<DocumentSnapshot> = callbackFlow {
-    val registration = addSnapshotListener { snapshot, firestoreException ->
+/**
+ * Observe the document with a snapshot listener.
+ * See [Query.asSnapshotFlow] for [bufferCapacity] and [onBufferOverflow]
+ */
+fun  DocumentReference.asDocumentFlow(
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+    metadataChanges: MetadataChanges = MetadataChanges.EXCLUDE,
+) : Flow<DocumentSnapshot> = callbackFlow {
+    val registration = addSnapshotListener(metadataChanges) { snapshot, firestoreException ->
         if (firestoreException != null) {
             close(firestoreException)
         }
         snapshot?.let {
-            trySendBlocking(snapshot).onFailure { throw it!! }
+            trySend(snapshot)
         }
     }
     awaitClose { registration.remove() }
-}
+}.bufferSnapshots(bufferCapacity, onBufferOverflow)
 
-inline fun  <reified T : Any> DocumentReference.asFlow() : Flow<T?> = when (T::class) {
+inline fun  <reified T : Any> DocumentReference.asFlow(
+    bufferCapacity: Int = Channel.CONFLATED,
+    onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+) : Flow<T?> = when (T::class) {
     is DocumentSnapshot -> {
         @Suppress("UNCHECKED_CAST")
-        asDocumentFlow() as Flow<T?>
+        asDocumentFlow(bufferCapacity, onBufferOverflow) as Flow<T?>
+    }
+    else -> asObjectFlow(T::class, bufferCapacity, onBufferOverflow)
+}
+
+internal fun <T> Flow<T>.bufferSnapshots(capacity: Int, onBufferOverflow: BufferOverflow): Flow<T> {
+    return when (capacity) {
+        Channel.CONFLATED -> conflate()
+        Channel.UNLIMITED -> buffer(Channel.UNLIMITED)
+        else -> {
+            require(onBufferOverflow != BufferOverflow.SUSPEND) {
+                "BufferOverflow.SUSPEND would block the Firestore listener"
+            }
+            buffer(capacity, onBufferOverflow)
+        }
     }
-    else -> asObjectFlow(T::class)
 }
 
@@ -0,0 +1,171 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.firebase.firestore.DocumentReference
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.Query
+import com.google.firebase.firestore.QuerySnapshot
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.launch
+import kotlin.reflect.KClass
+
+/**
+ * Share the snapshot listeners of identical queries and documents.
+ *
+ * All the collectors of an equal [Query] or [DocumentReference] share a single snapshot listener.
+ * The listener is removed [lingerMillis] after the last collector is gone, so that it survives
+ * configuration changes. New collectors immediately get the latest snapshot.
+ *
+ * [bufferCapacity] and [onBufferOverflow] apply to the listener and to each collector, see [Query.asSnapshotFlow].
+ * Each collector has its own buffer, so a slow collector doesn't hold back the others.
+ */
+class SnapshotListenerRegistry(
+    private val lingerMillis: Long = 5_000,
+    private val bufferCapacity: Int = Channel.CONFLATED,
+    private val onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+    private val scope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default),
+) {
+    private val lock = Any()
+    private val entries = HashMap<Any, Entry<*>>()
+
+    fun snapshots(query: Query): Flow<QuerySnapshot> = share(query) {
+        query.asSnapshotFlow(bufferCapacity, onBufferOverflow)
+    }
+
+    fun snapshots(document: DocumentReference): Flow<DocumentSnapshot> = share(document) {
+        document.asDocumentFlow(bufferCapacity, onBufferOverflow)
+    }
+
+    /**
+     * The objects are mapped once for all the collectors
+     */
+    fun <T : Any> objects(query: Query, type: KClass<T>): Flow<List<T>> = share(MappedKey(query, type)) {
+        val documentMapper = documentMapperFor(type)
+        snapshots(query).map { snapshot -> snapshot.documents.mapNotNull(documentMapper) }
+    }
+
+    /**
+     * The object is mapped once for all the collectors
+     */
+    fun <T : Any> objects(document: DocumentReference, type: KClass<T>): Flow<T?> = share(MappedKey(document, type)) {
+        val documentMapper = documentMapperFor(type)
+        snapshots(document).map { documentMapper(it) }
+    }
+
+    private fun <T> share(key: Any, upstream: () -> Flow<T>): Flow<T> = flow {
+        val entry = acquire(key, upstream)
+        try {
+            entry.values.bufferSnapshots(bufferCapacity, onBufferOverflow).collect { result ->
+                result.onFailure { evict(key, entry) }
+                emit(result.getOrThrow())
+            }
+        } finally {
+            release(key, entry)
+        }
+    }
+
+    private fun <T> acquire(key: Any, upstream: () -> Flow<T>): Entry<T> = synchronized(lock) {
+        @Suppress("UNCHECKED_CAST")
+        val entry = entries.getOrPut(key) {
+            val entryScope = CoroutineScope(scope.coroutineContext + Job(scope.coroutineContext[Job]))
+            val values = upstream()
+                .map { Result.success(it) }
+                .catch { emit(Result.failure(it)) }
+                .shareIn(entryScope, SharingStarted.Lazily, replay = 1)
+            Entry(entryScope, values)
+        } as Entry<T>
+        entry.refCount++
+        entry.lingerJob?.cancel()
+        entry.lingerJob = null
+        entry
+    }
+
+    private fun release(key: Any, entry: Entry<*>) = synchronized(lock) {
+        entry.refCount--
+        if (entry.refCount == 0 && entries[key] === entry) {
+            entry.lingerJob = scope.launch {
+                delay(lingerMillis)
+                synchronized(lock) {
+                    if (entry.refCount == 0 && entries[key] === entry) {
+                        entries.remove(key)
+                        entry.scope.cancel()
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a failed entry, the next collector will add a new listener
+     */
+    private fun evict(key: Any, entry: Entry<*>) = synchronized(lock) {
+        if (entries[key] === entry) {
+            entries.remove(key)
+        }
+        entry.lingerJob?.cancel()
+        entry.scope.cancel()
+    }
+
+    private class Entry<T>(val scope: CoroutineScope, val values: SharedFlow<Result<T>>) {
+        var refCount = 0
+        var lingerJob: Job? = null
+    }
+
+    private data class MappedKey(val source: Any, val type: KClass<*>)
+
+    companion object {
+        /**
+         * The process wide registry
+         */
+        val Default: SnapshotListenerRegistry by lazy { SnapshotListenerRegistry() }
+    }
+}
+
+fun Query.asSharedSnapshotFlow(registry: SnapshotListenerRegistry = SnapshotListenerRegistry.Default): Flow<QuerySnapshot> =
+    registry.snapshots(this)
+
+fun Query.asSharedDocumentFlow(registry: SnapshotListenerRegistry = SnapshotListenerRegistry.Default): Flow<List<DocumentSnapshot>> =
+    registry.snapshots(this).map { it.documents }
+
+fun <T : Any> Query.asSharedFlow(type: KClass<T>, registry: SnapshotListenerRegistry = SnapshotListenerRegistry.Default): Flow<List<T>> =
+    registry.objects(this, type)
+
+fun DocumentReference.asSharedDocumentFlow(registry: SnapshotListenerRegistry = SnapshotListenerRegistry.Default): Flow<DocumentSnapshot> =
+    registry.snapshots(this)
+
+fun <T : Any> DocumentReference.asSharedObjectFlow(type: KClass<T>, registry: SnapshotListenerRegistry = SnapshotListenerRegistry.Default): Flow<T?> =
+    registry.objects(this, type)
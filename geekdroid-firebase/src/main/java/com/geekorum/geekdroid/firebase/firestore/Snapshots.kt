@@ -0,0 +1,81 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.QuerySnapshot
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.filter
+
+/**
+ * Filter the query snapshots on their metadata.
+ *
+ * To receive the snapshots only differing by their metadata, the snapshot listener must be registered with
+ * [com.google.firebase.firestore.MetadataChanges.INCLUDE].
+ *
+ * @param skipPendingWrites skip the snapshots with local writes not yet committed to the backend
+ * @param skipFromCache skip the snapshots coming from the local cache
+ * @param distinctDocuments skip the snapshots whose documents are the same as the previous emitted snapshot
+ */
+fun Flow<QuerySnapshot>.filterSnapshots(
+    skipPendingWrites: Boolean = false,
+    skipFromCache: Boolean = false,
+    distinctDocuments: Boolean = true,
+): Flow<QuerySnapshot> {
+    val filtered = filter {
+        !(skipPendingWrites && it.metadata.hasPendingWrites()) && !(skipFromCache && it.metadata.isFromCache)
+    }
+    return if (distinctDocuments) {
+        filtered.distinctUntilChanged { old, new -> old.documents.hasSameContent(new.documents) }
+    } else filtered
+}
+
+/**
+ * Filter the document snapshots on their metadata.
+ * See [filterSnapshots]
+ */
+@JvmName("filterDocumentSnapshots")
+fun Flow<DocumentSnapshot>.filterSnapshots(
+    skipPendingWrites: Boolean = false,
+    skipFromCache: Boolean = false,
+    distinctDocuments: Boolean = true,
+): Flow<DocumentSnapshot> {
+    val filtered = filter {
+        !(skipPendingWrites && it.metadata.hasPendingWrites()) && !(skipFromCache && it.metadata.isFromCache)
+    }
+    return if (distinctDocuments) {
+        filtered.distinctUntilChanged { old, new -> old.hasSameContent(new) }
+    } else filtered
+}
+
+/**
+ * Compare the documents content, ignoring their metadata.
+ * Equal snapshots are checked first, their data is only compared when they differ.
+ */
+internal fun DocumentSnapshot.hasSameContent(other: DocumentSnapshot): Boolean {
+    return this == other || (reference == other.reference && exists() == other.exists() && data == other.data)
+}
+
+internal fun List<DocumentSnapshot>.hasSameContent(other: List<DocumentSnapshot>): Boolean {
+    return size == other.size && indices.all { this[it].hasSameContent(other[it]) }
+}
@@ -0,0 +1,130 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.android.gms.tasks.Task
+import com.google.android.gms.tasks.TaskCompletionSource
+import com.google.android.gms.tasks.Tasks
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.DocumentReference
+import com.google.firebase.firestore.FirebaseFirestore
+import com.google.firebase.firestore.FirebaseFirestoreException
+import com.google.firebase.firestore.WriteBatch
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.async
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+class BatchWritesTest {
+
+    private lateinit var firestore: FirebaseFirestore
+    private val batches = mutableListOf<MutableList<DocumentReference>>()
+    private var commit: (Int) -> Task<Void> = { Tasks.forResult(null) }
+
+    @BeforeTest
+    fun setUp() {
+        firestore = mockk {
+            every { batch() } answers { createBatch() }
+        }
+    }
+
+    private fun createBatch(): WriteBatch {
+        val index = batches.size
+        val documents = mutableListOf<DocumentReference>()
+        batches += documents
+        val batch = mockk<WriteBatch>()
+        every { batch.set(any(), any()) } answers {
+            require(secondArg<Any>() !is Unit) { "Unsupported data" }
+            documents += firstArg<DocumentReference>()
+            batch
+        }
+        every { batch.delete(any()) } answers {
+            documents += firstArg<DocumentReference>()
+            batch
+        }
+        every { batch.commit() } answers { commit(index) }
+        return batch
+    }
+
+    private fun writes(count: Int) = List(count) {
+        DocumentWrite.Set(mockk(name = "doc-$it"), mapOf("value" to it))
+    }
+
+    @Test
+    fun testThatWritesAreSplitInBatches() = runTest {
+        val writes = writes(1200)
+        val result = firestore.writeInBatches(writes)
+
+        assertThat(batches.map { it.size }).containsExactly(500, 500, 200).inOrder()
+        assertThat(result.isSuccessful).isTrue()
+        assertThat(result.written).containsExactlyElementsIn(writes)
+    }
+
+    @Test
+    fun testThatFailedBatchReportsAllItsWrites() = runTest {
+        val error = FirebaseFirestoreException("unavailable", FirebaseFirestoreException.Code.UNAVAILABLE)
+        commit = { if (it == 1) Tasks.forException(error) else Tasks.forResult(null) }
+        val writes = writes(25)
+        val result = firestore.writeInBatches(writes, batchSize = 10)
+
+        assertThat(result.written).containsExactlyElementsIn(writes.take(10) + writes.drop(20))
+        assertThat(result.failures).containsExactlyElementsIn(writes.subList(10, 20).map { WriteFailure(it, error) })
+    }
+
+    @Test
+    fun testThatRejectedWriteFailsAlone() = runTest {
+        val rejected = DocumentWrite.Set(mockk(name = "rejected"), Unit)
+        val deleted = DocumentWrite.Delete(mockk(name = "deleted"))
+        val result = firestore.writeInBatches(listOf(rejected, deleted))
+
+        assertThat(result.written).containsExactly(deleted)
+        assertThat(result.failures.map { it.write }).containsExactly(rejected)
+        assertThat(result.failures.single().exception).isInstanceOf(IllegalArgumentException::class.java)
+    }
+
+    @Test
+    fun testThatConcurrentCommitsAreBounded() = runTest {
+        val pendingCommits = mutableListOf<TaskCompletionSource<Void>>()
+        commit = { TaskCompletionSource<Void>().also { pendingCommits += it }.task }
+        val result = async { firestore.writeInBatches(writes(50), batchSize = 10, maxConcurrentBatches = 2) }
+
+        runCurrent()
+        // the third batch waits for a commit to complete
+        assertThat(batches).hasSize(3)
+        assertThat(pendingCommits).hasSize(2)
+
+        for (completed in 0 until 5) {
+            pendingCommits[completed].setResult(null)
+            runCurrent()
+            assertThat(pendingCommits).hasSize(minOf(completed + 3, 5))
+        }
+        assertThat(result.await().written).hasSize(50)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testThatBatchSizeIsLimited(): Unit = runTest {
+        firestore.writeInBatches(writes(10), batchSize = MAX_WRITE_BATCH_SIZE + 1)
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+class ConcatQueriesPagingSourceTest {
+
+    private lateinit var firstCollection: FakeCollection
+    private lateinit var secondCollection: FakeCollection
+
+    @BeforeTest
+    fun setUp() {
+        firstCollection = FakeCollection()
+        firstCollection.setAll(15)
+        secondCollection = FakeCollection()
+        secondCollection.setAll(25) { mapOf("value" to 100L + it) }
+    }
+
+    @AfterTest
+    fun tearDown() {
+        firstCollection.shutdown()
+        secondCollection.shutdown()
+    }
+
+    private fun createSource(prefetchNextQuery: Boolean = false) =
+        ConcatQueriesPagingSource(listOf(firstCollection.query, secondCollection.query),
+            prefetchNextQuery = prefetchNextQuery, cursorValues = ::collectionCursorValues, documentMapper = ::mapItem)
+
+    @Test
+    fun testThatQueriesAreLoadedOneAfterTheOther() = runTest {
+        val source = createSource()
+        val items = mutableListOf<Item>()
+        var page = source.refresh(loadSize = 10).asPage()
+        items += page.data
+        while (page.nextKey != null) {
+            page = source.append(page.nextKey!!, loadSize = 10).asPage()
+            items += page.data
+        }
+
+        assertThat(items.map { it.value }).isEqualTo((0L until 15L) + (100L until 125L))
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatNextQueryIsPrefetchedWhenCurrentIsExhausted() = runTest {
+        val source = createSource(prefetchNextQuery = true)
+        val first = source.refresh(loadSize = 10).asPage()
+        val exhausted = source.append(first.nextKey!!, loadSize = 10).asPage()
+        assertThat(exhausted.nextKey).isEqualTo(
+            ConcatQueriesPagingSource.Key(1, ConcatQueriesPagingSource.QueryKey.InitialKey))
+
+        // the prefetch runs in the scope of the source, the first page of the next query
+        // is listened before being requested
+        awaitUntil { secondCollection.registeredListeners.get() == 1 }
+        val next = source.append(exhausted.nextKey!!, loadSize = 10).asPage()
+        assertThat(next.data.map { it.value }).isEqualTo((100L until 110L).toList())
+        assertThat(secondCollection.registeredListeners.get()).isEqualTo(1)
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatPrefetchedListenerIsRemovedOnInvalidation() = runTest {
+        val source = createSource(prefetchNextQuery = true)
+        val first = source.refresh(loadSize = 10).asPage()
+        source.append(first.nextKey!!, loadSize = 10).asPage()
+        awaitUntil { secondCollection.registeredListeners.get() == 1 }
+
+        source.invalidate()
+        awaitUntil { secondCollection.activeListeners.get() == 0 }
+    }
+
+    @Test
+    fun testThatChangeInNextQueryInvalidatesTheSource() = runTest {
+        val source = createSource()
+        var page = source.refresh(loadSize = 10).asPage()
+        repeat(2) {
+            page = source.append(page.nextKey!!, loadSize = 10).asPage()
+        }
+
+        secondCollection.set(FakeCollection.documentId(2), mapOf("value" to 0L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.Query
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import kotlin.test.Test
+
+class DocumentCursorTest {
+
+    private val query = mockk<Query>(relaxed = true)
+
+    @Test
+    fun testThatDocumentIdIsAppendedToTheFieldValues() {
+        val cursor = DocumentCursor.FieldValues("doc-1", listOf(42L, "name"))
+
+        query.startAfterCursor(cursor)
+        query.startAtCursor(cursor)
+        query.endBeforeCursor(cursor)
+
+        verify {
+            query.startAfter(42L, "name", "doc-1")
+            query.startAt(42L, "name", "doc-1")
+            query.endBefore(42L, "name", "doc-1")
+        }
+    }
+
+    @Test
+    fun testThatCollectionCursorOnlyHasTheDocumentId() {
+        val cursor = DocumentCursor.FieldValues("doc-1", emptyList())
+
+        query.startAfterCursor(cursor)
+
+        verify { query.startAfter("doc-1") }
+    }
+
+    @Test
+    fun testThatCursorIsCreatedFromTheDocument() {
+        val document = mockk<DocumentSnapshot> {
+            every { id } returns "doc-1"
+            every { get("score") } returns 42L
+        }
+
+        assertThat(DocumentCursor.of(document, null)).isEqualTo(DocumentCursor.Snapshot(document))
+        assertThat(DocumentCursor.of(document) { listOf(it.get("score")) })
+            .isEqualTo(DocumentCursor.FieldValues("doc-1", listOf(42L)))
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.DocumentReference
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.SnapshotMetadata
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.Test
+
+class DocumentMappingCacheTest {
+
+    private val cache = DocumentMappingCache<Item>()
+    private val mappedDocuments = AtomicInteger()
+
+    private fun map(document: DocumentSnapshot): Item? {
+        mappedDocuments.incrementAndGet()
+        return if (document.exists()) mapItem(document) else null
+    }
+
+    private fun snapshot(
+        id: String, data: Map<String, Any>?, fromCache: Boolean = false, hasPendingWrites: Boolean = false
+    ): DocumentSnapshot = mockk {
+        val reference = mockk<DocumentReference> { every { path } returns "items/$id" }
+        val metadata = mockk<SnapshotMetadata> {
+            every { isFromCache } returns fromCache
+            every { hasPendingWrites() } returns hasPendingWrites
+        }
+        every { this@mockk.id } returns id
+        every { this@mockk.reference } returns reference
+        every { this@mockk.metadata } returns metadata
+        every { this@mockk.data } returns data
+        every { exists() } returns (data != null)
+        every { get(any<String>()) } answers { data?.get(firstArg()) }
+    }
+
+    @Test
+    fun testThatSnapshotsOnlyDifferingByTheirMetadataReuseTheObject() {
+        val fromCache = snapshot("a", mapOf("value" to 1L), fromCache = true, hasPendingWrites = true)
+        val fromServer = snapshot("a", mapOf("value" to 1L))
+
+        val first = cache.getOrMap(fromCache, ::map)
+        val second = cache.getOrMap(fromServer, ::map)
+
+        assertThat(second).isSameInstanceAs(first)
+        assertThat(mappedDocuments.get()).isEqualTo(1)
+    }
+
+    @Test
+    fun testThatEqualSnapshotIsFoundWithoutReadingItsData() {
+        val document = snapshot("a", mapOf("value" to 1L))
+
+        val first = cache.getOrMap(document, ::map)
+        val second = cache.getOrMap(document, ::map)
+
+        assertThat(second).isSameInstanceAs(first)
+        assertThat(mappedDocuments.get()).isEqualTo(1)
+        verify(exactly = 0) { document.data }
+    }
+
+    @Test
+    fun testThatChangedDataIsMappedAgain() {
+        cache.getOrMap(snapshot("a", mapOf("value" to 1L)), ::map)
+        val updated = cache.getOrMap(snapshot("a", mapOf("value" to 2L)), ::map)
+
+        assertThat(updated).isEqualTo(Item("a", 2L))
+        assertThat(mappedDocuments.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun testThatDeletedDocumentIsMappedAgain() {
+        cache.getOrMap(snapshot("a", mapOf("value" to 1L)), ::map)
+        val deleted = cache.getOrMap(snapshot("a", null), ::map)
+
+        assertThat(deleted).isNull()
+        assertThat(mappedDocuments.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun testThatDocumentsAreCachedPerPath() {
+        cache.getOrMap(snapshot("a", mapOf("value" to 1L)), ::map)
+        cache.getOrMap(snapshot("b", mapOf("value" to 1L)), ::map)
+
+        assertThat(mappedDocuments.get()).isEqualTo(2)
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.android.gms.tasks.Task
+import com.google.android.gms.tasks.Tasks
+import com.google.firebase.firestore.DocumentChange
+import com.google.firebase.firestore.DocumentReference
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.EventListener
+import com.google.firebase.firestore.FirebaseFirestoreException
+import com.google.firebase.firestore.ListenerRegistration
+import com.google.firebase.firestore.MetadataChanges
+import com.google.firebase.firestore.Query
+import com.google.firebase.firestore.QuerySnapshot
+import com.google.firebase.firestore.SnapshotMetadata
+import com.google.firebase.firestore.Source
+import io.mockk.every
+import io.mockk.mockk
+import java.util.TreeMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A scriptable in-memory stand-in for a Firestore collection.
+ *
+ * Documents are ordered by id. Queries support limit(), limitToLast(), and the startAfter(),
+ * startAt() and endBefore() cursors, with a document or the document id as value, and the endAt()
+ * cursor with a document.
+ * get(Source.CACHE) reads a separate local cache, empty until filled with [cacheDocuments].
+ * Snapshots are delivered on a background thread after [latencyMillis], like the real listeners.
+ * Without latency they are delivered synchronously, during the call registering the listener or changing
+ * the documents, so that tests can process them deterministically with the test dispatcher.
+ */
+class FakeCollection(
+    private val latencyMillis: Long = 0,
+) {
+    private val documents = TreeMap<String, Map<String, Any?>>()
+    private val cache = TreeMap<String, Map<String, Any?>>()
+    private val listeners = CopyOnWriteArrayList<FakeListener>()
+    private val snapshots = HashMap<Pair<String, Map<String, Any?>>, DocumentSnapshot>()
+    private val references = HashMap<String, DocumentReference>()
+    private val executor by lazy {
+        Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "fake-firestore").apply { isDaemon = true }
+        }
+    }
+
+    /** Number of snapshot listeners currently registered */
+    val activeListeners = AtomicInteger()
+    /** Number of snapshot listeners registered since the creation */
+    val registeredListeners = AtomicInteger()
+    /** Number of documents delivered by get() and the listeners, without the reads from the cache */
+    val documentReads = AtomicInteger()
+
+    /** The error to fail the next get() or snapshot listener with */
+    @Volatile var nextError: FirebaseFirestoreException? = null
+
+    val query: Query = createQuery(QuerySpec())
+
+    fun set(id: String, data: Map<String, Any?>) {
+        synchronized(this) {
+            documents[id] = data
+        }
+        notifyListeners()
+    }
+
+    fun setAll(count: Int, data: (Int) -> Map<String, Any?> = { mapOf("value" to it.toLong()) }) {
+        synchronized(this) {
+            repeat(count) { documents[documentId(it)] = data(it) }
+        }
+        notifyListeners()
+    }
+
+    fun delete(id: String) {
+        synchronized(this) {
+            documents.remove(id)
+        }
+        notifyListeners()
+    }
+
+    /**
+     * Replace the local cache by the current documents, like after a previous session
+     */
+    fun cacheDocuments() {
+        synchronized(this) {
+            cache.clear()
+            cache.putAll(documents)
+        }
+    }
+
+    /**
+     * Apply [count] updates in a row, each one notifying the listeners
+     */
+    fun burst(count: Int, update: (Int) -> Unit) {
+        repeat(count) { update(it) }
+    }
+
+    /**
+     * Deliver again the current snapshots to all the listeners, even if they didn't change,
+     * like the confirmations of the server.
+     */
+    fun touch() {
+        listeners.forEach { deliver(it, force = true) }
+    }
+
+    /**
+     * Fail all the registered listeners
+     */
+    fun failListeners(exception: FirebaseFirestoreException) {
+        listeners.forEach { listener ->
+            schedule { listener.listener.onEvent(null, exception) }
+        }
+    }
+
+    fun shutdown() {
+        if (latencyMillis > 0) {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun createQuery(spec: QuerySpec): Query {
+        val query = mockk<Query>()
+        every { query.limit(any()) } answers { createQuery(spec.copy(limit = firstArg(), limitToLast = false)) }
+        every { query.limitToLast(any()) } answers { createQuery(spec.copy(limit = firstArg(), limitToLast = true)) }
+        every { query.startAfter(any<DocumentSnapshot>()) } answers {
+            createQuery(spec.copy(start = Bound(firstArg<DocumentSnapshot>().id, inclusive = false)))
+        }
+        every { query.startAt(any<DocumentSnapshot>()) } answers {
+            createQuery(spec.copy(start = Bound(firstArg<DocumentSnapshot>().id, inclusive = true)))
+        }
+        every { query.endBefore(any<DocumentSnapshot>()) } answers {
+            createQuery(spec.copy(end = Bound(firstArg<DocumentSnapshot>().id, inclusive = false)))
+        }
+        every { query.endAt(any<DocumentSnapshot>()) } answers {
+            createQuery(spec.copy(end = Bound(firstArg<DocumentSnapshot>().id, inclusive = true)))
+        }
+        every { query.startAfter(*anyVararg<Any>()) } answers {
+            createQuery(spec.copy(start = Bound(cursorValue(args), inclusive = false)))
+        }
+        every { query.startAt(*anyVararg<Any>()) } answers {
+            createQuery(spec.copy(start = Bound(cursorValue(args), inclusive = true)))
+        }
+        every { query.endBefore(*anyVararg<Any>()) } answers {
+            createQuery(spec.copy(end = Bound(cursorValue(args), inclusive = false)))
+        }
+        every { query.get() } answers { get(spec) }
+        every { query.get(any<Source>()) } answers {
+            if (firstArg<Source>() == Source.CACHE) getFromCache(spec) else get(spec)
+        }
+        every { query.addSnapshotListener(any<MetadataChanges>(), any<EventListener<QuerySnapshot>>()) } answers {
+            addListener(spec, secondArg())
+        }
+        every { query.addSnapshotListener(any<EventListener<QuerySnapshot>>()) } answers {
+            addListener(spec, firstArg())
+        }
+        return query
+    }
+
+    private fun cursorValue(args: List<Any?>): String {
+        // the field values are either expanded or kept as an array, the document id is the only one supported
+        val values = args.flatMap { if (it is Array<*>) it.asList() else listOf(it) }
+        return values.single() as String
+    }
+
+    private fun get(spec: QuerySpec) = nextError?.let {
+        nextError = null
+        Tasks.forException<QuerySnapshot>(it)
+    } ?: Tasks.forResult(querySnapshot(execute(spec), emptyList()))
+
+    private fun getFromCache(spec: QuerySpec): Task<QuerySnapshot> {
+        val documents = synchronized(this) { execute(spec, cache) }
+        return Tasks.forResult(querySnapshot(documents, emptyList(), fromCache = true))
+    }
+
+    private fun addListener(spec: QuerySpec, listener: EventListener<QuerySnapshot>): ListenerRegistration {
+        val fakeListener = FakeListener(spec, listener)
+        listeners += fakeListener
+        activeListeners.incrementAndGet()
+        registeredListeners.incrementAndGet()
+        val error = nextError
+        nextError = null
+        if (error != null) {
+            schedule { listener.onEvent(null, error) }
+        } else {
+            deliver(fakeListener)
+        }
+        val registration = mockk<ListenerRegistration>()
+        every { registration.remove() } answers {
+            if (listeners.remove(fakeListener)) {
+                activeListeners.decrementAndGet()
+            }
+        }
+        return registration
+    }
+
+    private fun notifyListeners() {
+        listeners.forEach { deliver(it) }
+    }
+
+    private fun deliver(listener: FakeListener, force: Boolean = false) {
+        val result = execute(listener.spec)
+        schedule {
+            synchronized(listener) {
+                if (listener !in listeners) return@schedule
+                val previous = listener.lastDelivered
+                if (!force && previous != null && previous == result) return@schedule
+                listener.lastDelivered = result
+                listener.listener.onEvent(querySnapshot(result, previous), null)
+            }
+        }
+    }
+
+    private fun schedule(block: () -> Unit) {
+        if (latencyMillis == 0L) {
+            block()
+            return
+        }
+        executor.schedule(block, latencyMillis, TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    private fun execute(spec: QuerySpec, documents: Map<String, Map<String, Any?>> = this.documents): List<DocumentSnapshot> {
+        var entries = documents.entries.toList()
+        spec.start?.let { bound ->
+            entries = entries.filter { if (bound.inclusive) it.key >= bound.id else it.key > bound.id }
+        }
+        spec.end?.let { bound ->
+            entries = entries.filter { if (bound.inclusive) it.key <= bound.id else it.key < bound.id }
+        }
+        spec.limit?.let { limit ->
+            entries = if (spec.limitToLast) entries.takeLast(limit.toInt()) else entries.take(limit.toInt())
+        }
+        return entries.map { (id, data) -> documentSnapshot(id, data) }
+    }
+
+    private fun documentSnapshot(id: String, data: Map<String, Any?>): DocumentSnapshot {
+        return snapshots.getOrPut(id to data) {
+            val reference = references.getOrPut(id) {
+                mockk<DocumentReference> {
+                    every { this@mockk.id } returns id
+                    every { path } returns "$COLLECTION_PATH/$id"
+                }
+            }
+            mockk {
+                every { this@mockk.id } returns id
+                every { this@mockk.data } returns data
+                every { exists() } returns true
+                every { this@mockk.reference } returns reference
+                every { metadata } returns noMetadata
+                every { get(any<String>()) } answers { data[firstArg()] }
+            }
+        }
+    }
+
+    private fun querySnapshot(
+        documents: List<DocumentSnapshot>, previous: List<DocumentSnapshot>?, fromCache: Boolean = false
+    ): QuerySnapshot {
+        if (!fromCache) {
+            documentReads.addAndGet(documents.size)
+        }
+        val previousById = previous.orEmpty().associateBy { it.id }
+        val ids = documents.mapTo(HashSet()) { it.id }
+        val changes = documents.mapNotNull { document ->
+            when (previousById[document.id]) {
+                null -> documentChange(DocumentChange.Type.ADDED, document)
+                document -> null
+                else -> documentChange(DocumentChange.Type.MODIFIED, document)
+            }
+        } + previous.orEmpty().filter { it.id !in ids }.map { documentChange(DocumentChange.Type.REMOVED, it) }
+        return mockk {
+            every { this@mockk.documents } returns documents
+            every { documentChanges } returns changes
+            every { metadata } returns if (fromCache) cacheMetadata else noMetadata
+            every { size() } returns documents.size
+            every { isEmpty } returns documents.isEmpty()
+        }
+    }
+
+    private fun documentChange(type: DocumentChange.Type, document: DocumentSnapshot): DocumentChange = mockk {
+        every { this@mockk.type } returns type
+        every { this@mockk.document } returns document
+    }
+
+    private data class QuerySpec(
+        val limit: Long? = null,
+        val limitToLast: Boolean = false,
+        val start: Bound? = null,
+        val end: Bound? = null,
+    )
+
+    private data class Bound(val id: String, val inclusive: Boolean)
+
+    private class FakeListener(val spec: QuerySpec, val listener: EventListener<QuerySnapshot>) {
+        var lastDelivered: List<DocumentSnapshot>? = null
+    }
+
+    companion object {
+        private val noMetadata = mockk<SnapshotMetadata> {
+            every { hasPendingWrites() } returns false
+            every { isFromCache } returns false
+        }
+        private val cacheMetadata = mockk<SnapshotMetadata> {
+            every { hasPendingWrites() } returns false
+            every { isFromCache } returns true
+        }
+
+        private const val COLLECTION_PATH = "items"
+
+        /** Id of the document at [index], ids are ordered like the indexes */
+        fun documentId(index: Int) = "doc-%06d".format(index)
+    }
+}
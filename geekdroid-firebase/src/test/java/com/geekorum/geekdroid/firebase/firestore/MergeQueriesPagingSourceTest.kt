@@ -0,0 +1,186 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.paging.PagingSource.LoadResult
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.FirebaseFirestoreException
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+class MergeQueriesPagingSourceTest {
+
+    private lateinit var firstCollection: FakeCollection
+    private lateinit var secondCollection: FakeCollection
+
+    @BeforeTest
+    fun setUp() {
+        firstCollection = FakeCollection()
+        secondCollection = FakeCollection()
+    }
+
+    @AfterTest
+    fun tearDown() {
+        firstCollection.shutdown()
+        secondCollection.shutdown()
+    }
+
+    private fun FakeCollection.setIndexes(indexes: Iterable<Int>) {
+        indexes.forEach { set(FakeCollection.documentId(it), mapOf("value" to it.toLong())) }
+    }
+
+    private fun createSource(maxPages: Int = Int.MAX_VALUE) = MergeQueriesPagingSource(
+        listOf(firstCollection.query, secondCollection.query),
+        comparator = compareBy<DocumentSnapshot> { it.id },
+        maxPages = maxPages,
+        cursorValues = ::collectionCursorValues,
+        documentMapper = ::mapItem)
+
+    private suspend fun TestScope.loadAll(source: MergeQueriesPagingSource<Item>, loadSize: Int): List<List<Long>> {
+        val pages = mutableListOf<List<Long>>()
+        var page = source.refresh(loadSize = loadSize).asPage()
+        pages += page.data.map { it.value }
+        while (page.nextKey != null) {
+            page = source.append(page.nextKey!!, loadSize = loadSize).asPage()
+            pages += page.data.map { it.value }
+        }
+        source.invalidate()
+        advanceUntilIdle()
+        return pages
+    }
+
+    @Test
+    fun testThatQueriesAreInterleaved() = runTest {
+        firstCollection.setIndexes(0 until 20 step 2)
+        secondCollection.setIndexes(1 until 20 step 2)
+
+        val pages = loadAll(createSource(), loadSize = 5)
+        assertThat(pages.flatten()).isEqualTo((0L until 20L).toList())
+        assertThat(pages.first()).isEqualTo(listOf(0L, 1L, 2L, 3L, 4L))
+    }
+
+    @Test
+    fun testThatQueriesShareTheLoadSize() = runTest {
+        firstCollection.setIndexes(0 until 20 step 2)
+        secondCollection.setIndexes(1 until 20 step 2)
+
+        val source = createSource()
+        val page = source.refresh(loadSize = 10).asPage()
+        // the page stops after document 8, the last one loaded from the first query
+        assertThat(page.data.map { it.value }).isEqualTo((0L until 9L).toList())
+        assertThat(firstCollection.documentReads.get() + secondCollection.documentReads.get()).isEqualTo(10)
+        assertThat(page.nextKey!!.queryKeys[0]).isEqualTo(MergeQueriesPagingSource.QueryKey.StartAtDocumentKey(
+            DocumentCursor.FieldValues(FakeCollection.documentId(8), emptyList())))
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatPageStopsAtTheLastLoadedDocumentOfAQuery() = runTest {
+        firstCollection.setIndexes(0 until 10)
+        secondCollection.setIndexes(10 until 20)
+
+        val source = createSource()
+        val first = source.refresh(loadSize = 10).asPage()
+        // the next documents of the first query are not loaded yet
+        assertThat(first.data.map { it.value }).isEqualTo((0L until 5L).toList())
+        source.invalidate()
+        advanceUntilIdle()
+
+        assertThat(loadAll(createSource(), loadSize = 10).flatten()).isEqualTo((0L until 20L).toList())
+    }
+
+    @Test
+    fun testThatOnlyTheListenersOfTheLastPagesAreKept() = runTest {
+        firstCollection.setIndexes(0 until 20 step 2)
+        secondCollection.setIndexes(1 until 20 step 2)
+
+        val source = createSource(maxPages = 2)
+        var page = source.refresh(loadSize = 4).asPage()
+        repeat(3) {
+            page = source.append(page.nextKey!!, loadSize = 4).asPage()
+        }
+        advanceUntilIdle()
+        // a listener per query for each of the 2 last pages
+        assertThat(firstCollection.activeListeners.get()).isEqualTo(2)
+        assertThat(secondCollection.activeListeners.get()).isEqualTo(2)
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatDocumentsOfSeveralQueriesAppearOnce() = runTest {
+        firstCollection.setIndexes(0 until 10)
+        secondCollection.setIndexes(5 until 15)
+
+        val pages = loadAll(createSource(), loadSize = 4)
+        assertThat(pages.flatten()).isEqualTo((0L until 15L).toList())
+    }
+
+    @Test
+    fun testThatQueryExhaustedEarlyIsNotLoadedAgain() = runTest {
+        firstCollection.setIndexes(listOf(0, 1))
+        secondCollection.setIndexes(2 until 12)
+
+        val source = createSource()
+        val first = source.refresh(loadSize = 5).asPage()
+        assertThat(first.nextKey!!.queryKeys[0]).isEqualTo(MergeQueriesPagingSource.QueryKey.EndOfQueryKey)
+        val next = source.append(first.nextKey!!, loadSize = 5).asPage()
+
+        assertThat((first.data + next.data).map { it.value }).isEqualTo((0L until 10L).toList())
+        // only the listener of the first page of the exhausted query
+        assertThat(firstCollection.registeredListeners.get()).isEqualTo(1)
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatDuplicateOnPageBoundaryAppearsOnce() = runTest {
+        // both queries have document 2, the first query has more documents after its first page
+        firstCollection.setIndexes(listOf(0, 1, 2, 6, 7))
+        secondCollection.setIndexes(2 until 6)
+
+        // each query loads 3 documents
+        val pages = loadAll(createSource(), loadSize = 6)
+        assertThat(pages.first()).isEqualTo(listOf(0L, 1L, 2L))
+        assertThat(pages.flatten()).isEqualTo((0L until 8L).toList())
+    }
+
+    @Test
+    fun testThatFailedQueryCancelsTheListenersOfThePage() = runTest {
+        firstCollection.setIndexes(0 until 10)
+        secondCollection.setIndexes(0 until 10)
+        secondCollection.nextError = FirebaseFirestoreException("permission denied",
+            FirebaseFirestoreException.Code.PERMISSION_DENIED)
+
+        val source = createSource()
+        assertThat(source.refresh(loadSize = 5)).isInstanceOf(LoadResult.Error::class.java)
+        advanceUntilIdle()
+        assertThat(firstCollection.activeListeners.get()).isEqualTo(0)
+        source.invalidate()
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.paging.PagingSource
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.Properties
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+/**
+ * Benchmark harness of the Firestore paging sources against [FakeCollection].
+ *
+ * Each scenario pages through a collection. The snapshots are delivered without latency, so the load
+ * latency measured is the cost of the source itself. The listeners and invalidations counts are checked,
+ * while the latencies, allocations and reads of each scenario are written to a properties file in
+ * [REPORT_DIR_PROPERTY], so that CI can keep them and compare the runs.
+ */
+class PagingSourcesBenchmarkTest {
+
+    private lateinit var collection: FakeCollection
+
+    @BeforeTest
+    fun setUp() {
+        collection = FakeCollection()
+        collection.setAll(PAGES * PAGE_SIZE)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        collection.shutdown()
+    }
+
+    @Test
+    fun benchmarkListenerPerPage() = runTest {
+        val result = measure("QueryPagingSource listener per page", expectedActiveListeners = PAGES) {
+            QueryPagingSource(collection.query, cursorValues = ::collectionCursorValues, documentMapper = ::mapItem)
+        }
+        assertThat(result.invalidations).isEqualTo(0)
+    }
+
+    @Test
+    fun benchmarkListenerPerPageWithMaxPages() = runTest {
+        val result = measure("QueryPagingSource listener per page, maxPages = 3", expectedActiveListeners = 3) {
+            QueryPagingSource(collection.query, maxPages = 3, cursorValues = ::collectionCursorValues, documentMapper = ::mapItem)
+        }
+        assertThat(result.registeredListeners).isEqualTo(PAGES)
+        assertThat(result.invalidations).isEqualTo(0)
+    }
+
+    @Test
+    fun benchmarkGetWithSingleListener() = runTest {
+        val result = measure("QueryPagingSource get with single listener", expectedActiveListeners = 1) {
+            QueryPagingSource(collection.query, loadStrategy = LoadStrategy.GET_WITH_SINGLE_LISTENER,
+                cursorValues = ::collectionCursorValues, documentMapper = ::mapItem)
+        }
+        assertThat(result.invalidations).isEqualTo(0)
+    }
+
+    @Test
+    fun benchmarkPageCache() = runTest {
+        val result = measure("QueryPagingSource with page cache", expectedActiveListeners = PAGES) {
+            QueryPagingSource(collection.query, pageCache = QueryPageCache(), cursorValues = ::collectionCursorValues,
+                documentMapper = ::mapItem)
+        }
+        assertThat(result.invalidations).isEqualTo(0)
+    }
+
+    @Test
+    fun benchmarkConcatQueries() = runTest {
+        val otherCollection = FakeCollection()
+        otherCollection.setAll(PAGES * PAGE_SIZE)
+        val result = measure("ConcatQueriesPagingSource with next query prefetch", expectedActiveListeners = PAGES,
+            otherCollection) {
+            ConcatQueriesPagingSource(listOf(collection.query, otherCollection.query), prefetchNextQuery = true,
+                cursorValues = ::collectionCursorValues, documentMapper = ::mapItem)
+        }
+        assertThat(result.invalidations).isEqualTo(0)
+    }
+
+    @Test
+    fun benchmarkBurstOfUnchangedSnapshots() = runTest {
+        val result = measure("QueryPagingSource burst of unchanged snapshots", expectedActiveListeners = PAGES,
+            burst = 20) {
+            QueryPagingSource(collection.query, cursorValues = ::collectionCursorValues, documentMapper = ::mapItem)
+        }
+        // the server confirmations don't invalidate the source
+        assertThat(result.invalidations).isEqualTo(0)
+    }
+
+    private suspend fun <K : Any> TestScope.measure(
+        name: String,
+        expectedActiveListeners: Int,
+        otherCollection: FakeCollection? = null,
+        burst: Int = 0,
+        createSource: () -> PagingSource<K, Item>,
+    ): Measures {
+        val collections = listOfNotNull(collection, otherCollection)
+        val source = createSource()
+        val invalidations = AtomicInteger()
+        source.registerInvalidatedCallback { invalidations.incrementAndGet() }
+
+        val latencies = LongArray(PAGES)
+        val allocatedBefore = allocatedBytes()
+        var nextKey: K? = null
+        for (i in 0 until PAGES) {
+            val start = System.nanoTime()
+            val result = if (i == 0) source.refresh(loadSize = PAGE_SIZE) else source.append(nextKey!!, PAGE_SIZE)
+            latencies[i] = System.nanoTime() - start
+            nextKey = result.asPage().nextKey
+        }
+        val allocatedPerPage = (allocatedBytes() - allocatedBefore) / PAGES
+
+        repeat(burst) { collections.forEach { it.touch() } }
+        advanceUntilIdle()
+        // some listeners are not tied to a page and run outside of the test dispatcher
+        awaitUntil { collections.sumOf { it.activeListeners.get() } == expectedActiveListeners }
+
+        val measures = Measures(
+            activeListeners = collections.sumOf { it.activeListeners.get() },
+            registeredListeners = collections.sumOf { it.registeredListeners.get() },
+            invalidations = invalidations.get(),
+        )
+        latencies.sort()
+        writeReport(name, Properties().apply {
+            setProperty("pages", PAGES.toString())
+            setProperty("pageSize", PAGE_SIZE.toString())
+            setProperty("loadMedianMicros", (latencies[PAGES / 2] / 1000).toString())
+            setProperty("loadMaxMicros", (latencies.last() / 1000).toString())
+            setProperty("allocatedBytesPerPage", allocatedPerPage.toString())
+            setProperty("activeListeners", measures.activeListeners.toString())
+            setProperty("registeredListeners", measures.registeredListeners.toString())
+            setProperty("documentReads", collections.sumOf { it.documentReads.get() }.toString())
+            setProperty("invalidations", measures.invalidations.toString())
+        })
+        source.invalidate()
+        advanceUntilIdle()
+        return measures
+    }
+
+    private fun writeReport(name: String, measures: Properties) {
+        val reportDir = File(System.getProperty(REPORT_DIR_PROPERTY) ?: "build/reports/paging-benchmark")
+        reportDir.mkdirs()
+        val fileName = name.lowercase().replace(Regex("[^a-z0-9]+"), "-").trim('-')
+        File(reportDir, "$fileName.properties").outputStream().use {
+            measures.store(it, name)
+        }
+    }
+
+    /**
+     * Bytes allocated by all the threads, including the ones of the dispatchers.
+     * Allocations of the threads which died are not counted.
+     */
+    private fun allocatedBytes(): Long {
+        val threadMXBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean ?: return 0
+        return threadMXBean.getThreadAllocatedBytes(threadMXBean.allThreadIds).filter { it > 0 }.sum()
+    }
+
+    private data class Measures(
+        val activeListeners: Int,
+        val registeredListeners: Int,
+        val invalidations: Int,
+    )
+
+    companion object {
+        private const val PAGES = 10
+        private const val PAGE_SIZE = 50
+        /** System property of the directory of the reports, set by the build */
+        const val REPORT_DIR_PROPERTY = "geekdroid.pagingBenchmarkReportDir"
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingSource.LoadParams
+import androidx.paging.PagingSource.LoadResult
+import com.google.firebase.firestore.DocumentSnapshot
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+
+internal data class Item(val id: String, val value: Long)
+
+internal fun mapItem(document: DocumentSnapshot) = Item(document.id, document.get("value") as Long)
+
+/**
+ * Cursor values of the fake collections, only ordered by document id
+ */
+@Suppress("UNUSED_PARAMETER")
+internal fun collectionCursorValues(document: DocumentSnapshot): List<Any?> = emptyList()
+
+internal suspend fun <K : Any, T : Any> PagingSource<K, T>.refresh(key: K? = null, loadSize: Int): LoadResult<K, T> =
+    load(LoadParams.Refresh(key, loadSize, placeholdersEnabled = false))
+
+internal suspend fun <K : Any, T : Any> PagingSource<K, T>.append(key: K, loadSize: Int): LoadResult<K, T> =
+    load(LoadParams.Append(key, loadSize, placeholdersEnabled = false))
+
+internal suspend fun <K : Any, T : Any> PagingSource<K, T>.prepend(key: K, loadSize: Int): LoadResult<K, T> =
+    load(LoadParams.Prepend(key, loadSize, placeholdersEnabled = false))
+
+internal fun <K : Any, T : Any> LoadResult<K, T>.asPage(): LoadResult.Page<K, T> = this as LoadResult.Page<K, T>
+
+/**
+ * Wait in real time for a [condition] changed by coroutines which don't run on the test dispatcher,
+ * like the listeners running in the scope of the source.
+ */
+internal suspend fun awaitUntil(timeoutMillis: Long = 5000, condition: () -> Boolean) {
+    withContext(Dispatchers.Default) {
+        withTimeout(timeoutMillis) {
+            while (!condition()) {
+                delay(5)
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.paging.PagingSource.LoadResult
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.FirebaseFirestoreException
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+class QueryPageCacheTest {
+
+    private lateinit var collection: FakeCollection
+    private val pageCache = QueryPageCache<Item>()
+    private val mappedDocuments = AtomicInteger()
+
+    @BeforeTest
+    fun setUp() {
+        collection = FakeCollection()
+        collection.setAll(30)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        collection.shutdown()
+    }
+
+    private fun createSource() = QueryPagingSource(collection.query, pageCache = pageCache,
+        cursorValues = ::collectionCursorValues) { document: DocumentSnapshot ->
+        mappedDocuments.incrementAndGet()
+        mapItem(document)
+    }
+
+    @Test
+    fun testThatOnlyChangedDocumentsAreMappedAgain() = runTest {
+        val source = createSource()
+        val page = source.refresh(loadSize = 10).asPage()
+        assertThat(mappedDocuments.get()).isEqualTo(10)
+
+        collection.set(FakeCollection.documentId(3), mapOf("value" to 300L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+
+        val nextSource = createSource()
+        val updated = nextSource.refresh(loadSize = 10).asPage()
+        advanceUntilIdle()
+        assertThat(mappedDocuments.get()).isEqualTo(11)
+        assertThat(updated.data.map { it.value }).isEqualTo(listOf(0L, 1L, 2L, 300L) + (4L until 10L))
+        assertThat(updated.data[0]).isSameInstanceAs(page.data[0])
+        // the cached page matches the snapshot of the new listener
+        assertThat(nextSource.invalid).isFalse()
+        nextSource.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatRemovedDocumentIsRemovedFromTheCachedPage() = runTest {
+        val source = createSource()
+        source.refresh(loadSize = 10)
+
+        collection.delete(FakeCollection.documentId(2))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+
+        val nextSource = createSource()
+        val updated = nextSource.refresh(loadSize = 10).asPage()
+        // the page keeps its bounds, no document enters it
+        assertThat(mappedDocuments.get()).isEqualTo(10)
+        assertThat(updated.data.map { it.value }).isEqualTo(listOf(0L, 1L) + (3L until 10L))
+        assertThat(nextSource.invalid).isFalse()
+        nextSource.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatInsertedDocumentDoesntShiftTheFollowingPages() = runTest {
+        val source = createSource()
+        val first = source.refresh(loadSize = 10).asPage()
+        val second = source.append(first.nextKey!!, loadSize = 10).asPage()
+        val third = source.append(second.nextKey!!, loadSize = 10).asPage()
+        assertThat(mappedDocuments.get()).isEqualTo(30)
+
+        // between the 3rd and the 4th documents of the first page
+        collection.set(FakeCollection.documentId(2) + "a", mapOf("value" to 200L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+
+        val nextSource = createSource()
+        val updatedFirst = nextSource.refresh(loadSize = 10).asPage()
+        val updatedSecond = nextSource.append(updatedFirst.nextKey!!, loadSize = 10).asPage()
+        val updatedThird = nextSource.append(updatedSecond.nextKey!!, loadSize = 10).asPage()
+        advanceUntilIdle()
+        // the first page grows, the following pages are read from the cache
+        assertThat(mappedDocuments.get()).isEqualTo(31)
+        assertThat(updatedFirst.data.map { it.value }).isEqualTo(listOf(0L, 1L, 2L, 200L) + (3L until 10L))
+        assertThat(updatedFirst.nextKey).isEqualTo(first.nextKey)
+        assertThat(updatedSecond.data).isEqualTo(second.data)
+        assertThat(updatedSecond.data[0]).isSameInstanceAs(second.data[0])
+        assertThat(updatedThird.data).isEqualTo(third.data)
+        assertThat(nextSource.invalid).isFalse()
+        nextSource.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatUnchangedSnapshotDoesntUpdateThePage() = runTest {
+        val source = createSource()
+        source.refresh(loadSize = 10)
+
+        collection.touch()
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        assertThat(mappedDocuments.get()).isEqualTo(10)
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatListenerErrorOnCachedPageDoesntInvalidateTheSource() = runTest {
+        createSource().apply {
+            refresh(loadSize = 10)
+            invalidate()
+        }
+        advanceUntilIdle()
+
+        val source = createSource()
+        val page = source.refresh(loadSize = 10)
+        assertThat(page).isInstanceOf(LoadResult.Page::class.java)
+        collection.failListeners(FirebaseFirestoreException("permission denied",
+            FirebaseFirestoreException.Code.PERMISSION_DENIED))
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatListenerErrorOnFirstLoadIsReturned() = runTest {
+        val source = createSource()
+        collection.nextError = FirebaseFirestoreException("permission denied",
+            FirebaseFirestoreException.Code.PERMISSION_DENIED)
+
+        assertThat(source.refresh(loadSize = 10)).isInstanceOf(LoadResult.Error::class.java)
+        source.invalidate()
+        advanceUntilIdle()
+    }
+}
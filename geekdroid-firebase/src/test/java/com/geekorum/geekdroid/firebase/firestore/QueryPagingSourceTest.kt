@@ -0,0 +1,322 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import androidx.paging.PagingSource.LoadResult
+import androidx.paging.PagingConfig
+import androidx.paging.PagingState
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.FirebaseFirestoreException
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+class QueryPagingSourceTest {
+
+    private lateinit var collection: FakeCollection
+
+    @BeforeTest
+    fun setUp() {
+        collection = FakeCollection()
+        collection.setAll(50)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        collection.shutdown()
+    }
+
+    private fun createSource(
+        loadStrategy: LoadStrategy = LoadStrategy.SNAPSHOT_LISTENER_PER_PAGE,
+        maxPages: Int = Int.MAX_VALUE,
+        refreshAtAnchor: Boolean = false,
+        validatePageKey: (DocumentSnapshot) -> Boolean = { true },
+        cursorValues: ((DocumentSnapshot) -> List<Any?>)? = ::collectionCursorValues,
+    ) = QueryPagingSource(collection.query, loadStrategy = loadStrategy, maxPages = maxPages,
+        refreshAtAnchor = refreshAtAnchor, validatePageKey = validatePageKey,
+        cursorValues = cursorValues, documentMapper = ::mapItem)
+
+    private fun TestScope.invalidate(source: QueryPagingSource<*>) {
+        source.invalidate()
+        advanceUntilIdle()
+    }
+
+    @Test
+    fun testThatPagesFollowEachOther() = runTest {
+        val source = createSource()
+        val first = source.refresh(loadSize = 20).asPage()
+        val second = source.append(first.nextKey!!, loadSize = 20).asPage()
+        val last = source.append(second.nextKey!!, loadSize = 20).asPage()
+
+        assertThat(first.prevKey).isNull()
+        assertThat((first.data + second.data + last.data).map { it.value }).isEqualTo((0L until 50L).toList())
+        assertThat(collection.activeListeners.get()).isEqualTo(3)
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatChangeInvalidatesTheSource() = runTest {
+        val source = createSource()
+        source.refresh(loadSize = 20)
+
+        collection.set(FakeCollection.documentId(5), mapOf("value" to 500L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+        // the listeners are removed with the invalid source
+        assertThat(collection.activeListeners.get()).isEqualTo(0)
+    }
+
+    @Test
+    fun testThatChangeOutsideOfTheLoadedPagesDoesntInvalidateTheSource() = runTest {
+        val source = createSource()
+        source.refresh(loadSize = 20)
+
+        collection.set(FakeCollection.documentId(30), mapOf("value" to 300L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatUnchangedSnapshotsDontInvalidateTheSource() = runTest {
+        val source = createSource()
+        val page = source.refresh(loadSize = 10).asPage()
+        source.append(page.nextKey!!, loadSize = 10)
+
+        repeat(10) { collection.touch() }
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatMaxPagesBoundsTheListeners() = runTest {
+        val source = createSource(maxPages = 2)
+        var page = source.refresh(loadSize = 10).asPage()
+        repeat(4) {
+            page = source.append(page.nextKey!!, loadSize = 10).asPage()
+        }
+        advanceUntilIdle()
+
+        assertThat(collection.activeListeners.get()).isEqualTo(2)
+        assertThat(collection.registeredListeners.get()).isEqualTo(5)
+        // the cancelled listeners don't invalidate the source
+        assertThat(source.invalid).isFalse()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatListenerErrorIsReturned() = runTest {
+        val source = createSource()
+        collection.nextError = FirebaseFirestoreException("permission denied",
+            FirebaseFirestoreException.Code.PERMISSION_DENIED)
+
+        val result = source.refresh(loadSize = 20)
+        assertThat(result).isInstanceOf(LoadResult.Error::class.java)
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatInvalidationIsNotifiedOnce() = runTest {
+        val source = createSource()
+        val invalidations = AtomicInteger()
+        source.registerInvalidatedCallback { invalidations.incrementAndGet() }
+        val page = source.refresh(loadSize = 10).asPage()
+        source.append(page.nextKey!!, loadSize = 10)
+
+        collection.burst(10) { collection.set(FakeCollection.documentId(it * 2), mapOf("value" to -it.toLong())) }
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+        assertThat(invalidations.get()).isEqualTo(1)
+    }
+
+    @Test
+    fun testThatSingleListenerStrategyKeepsOneListener() = runTest {
+        val source = createSource(loadStrategy = LoadStrategy.GET_WITH_SINGLE_LISTENER)
+        var page = source.refresh(loadSize = 10).asPage()
+        repeat(3) {
+            page = source.append(page.nextKey!!, loadSize = 10).asPage()
+        }
+        advanceUntilIdle()
+
+        assertThat(collection.activeListeners.get()).isEqualTo(1)
+        // registered again on the loaded range after each page
+        assertThat(collection.registeredListeners.get()).isEqualTo(4)
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatSingleListenerStrategyDetectsChangesInAllTheLoadedPages() = runTest {
+        val source = createSource(loadStrategy = LoadStrategy.GET_WITH_SINGLE_LISTENER)
+        val first = source.refresh(loadSize = 10).asPage()
+        source.append(first.nextKey!!, loadSize = 10)
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+
+        collection.set(FakeCollection.documentId(15), mapOf("value" to 1500L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+    }
+
+    @Test
+    fun testThatSingleListenerStrategyIgnoresChangesAfterTheLoadedPages() = runTest {
+        val source = createSource(loadStrategy = LoadStrategy.GET_WITH_SINGLE_LISTENER)
+        val first = source.refresh(loadSize = 10).asPage()
+        source.append(first.nextKey!!, loadSize = 10)
+        advanceUntilIdle()
+
+        collection.set(FakeCollection.documentId(25), mapOf("value" to 2500L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatSingleListenerStrategyInvalidatesOnChange() = runTest {
+        val source = createSource(loadStrategy = LoadStrategy.GET_WITH_SINGLE_LISTENER)
+        source.refresh(loadSize = 10)
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+
+        collection.set(FakeCollection.documentId(3), mapOf("value" to 300L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+    }
+
+    @Test
+    fun testThatSingleListenerErrorDoesntInvalidateTheSource() = runTest {
+        val source = createSource(loadStrategy = LoadStrategy.GET_WITH_SINGLE_LISTENER)
+        source.refresh(loadSize = 10).asPage()
+        advanceUntilIdle()
+
+        collection.failListeners(FirebaseFirestoreException("missing index",
+            FirebaseFirestoreException.Code.FAILED_PRECONDITION))
+        advanceUntilIdle()
+        assertThat(collection.activeListeners.get()).isEqualTo(0)
+        assertThat(source.invalid).isFalse()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatCacheFirstReturnsTheCachedPage() = runTest {
+        collection.cacheDocuments()
+        collection.set(FakeCollection.documentId(5), mapOf("value" to 500L))
+        val source = createSource(loadStrategy = LoadStrategy.CACHE_FIRST)
+
+        val page = source.refresh(loadSize = 10).asPage()
+        assertThat(page.data.map { it.value }).isEqualTo((0L until 10L).toList())
+        // the server documents differ from the cache
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+    }
+
+    @Test
+    fun testThatCacheFirstDoesntInvalidateWhenServerMatchesTheCache() = runTest {
+        collection.cacheDocuments()
+        val source = createSource(loadStrategy = LoadStrategy.CACHE_FIRST)
+
+        val page = source.refresh(loadSize = 10).asPage()
+        source.append(page.nextKey!!, loadSize = 10)
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        assertThat(collection.activeListeners.get()).isEqualTo(2)
+
+        collection.set(FakeCollection.documentId(15), mapOf("value" to 150L))
+        advanceUntilIdle()
+        assertThat(source.invalid).isTrue()
+    }
+
+    @Test
+    fun testThatCacheFirstLoadsFromTheServerWhenCacheIsEmpty() = runTest {
+        val source = createSource(loadStrategy = LoadStrategy.CACHE_FIRST)
+
+        val page = source.refresh(loadSize = 10).asPage()
+        assertThat(page.data.map { it.value }).isEqualTo((0L until 10L).toList())
+        assertThat(collection.documentReads.get()).isEqualTo(10)
+        advanceUntilIdle()
+        assertThat(source.invalid).isFalse()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatPrependLoadsThePagesBeforeTheRefreshKey() = runTest {
+        val source = createSource(refreshAtAnchor = true)
+        val refreshKey = QueryPagingSource.Key.RefreshAtDocumentKey(
+            DocumentCursor.FieldValues(FakeCollection.documentId(30), emptyList()))
+        val page = source.refresh(refreshKey, loadSize = 10).asPage()
+        val previous = source.prepend(page.prevKey!!, loadSize = 10).asPage()
+
+        assertThat(page.data.first().value).isEqualTo(30L)
+        assertThat(previous.data.map { it.value }).isEqualTo((20L until 30L).toList())
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatRefreshKeyIsAroundTheAnchorPosition() = runTest {
+        val source = createSource(refreshAtAnchor = true)
+        val first = source.refresh(loadSize = 10).asPage()
+        val second = source.append(first.nextKey!!, loadSize = 10).asPage()
+        val third = source.append(second.nextKey!!, loadSize = 10).asPage()
+        val state = PagingState(listOf(first, second, third), anchorPosition = 25,
+            config = PagingConfig(pageSize = 10, initialLoadSize = 10), leadingPlaceholderCount = 0)
+
+        val refreshKey = source.getRefreshKey(state)
+        assertThat(refreshKey?.cursor?.documentId).isEqualTo(FakeCollection.documentId(20))
+        assertThat(refreshKey).isInstanceOf(QueryPagingSource.Key.RefreshAtDocumentKey::class.java)
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatSourceReloadsFromTheStartByDefault() = runTest {
+        val source = createSource()
+        val first = source.refresh(loadSize = 10).asPage()
+        val second = source.append(first.nextKey!!, loadSize = 10).asPage()
+        val state = PagingState(listOf(first, second), anchorPosition = 15,
+            config = PagingConfig(pageSize = 10, initialLoadSize = 10), leadingPlaceholderCount = 0)
+
+        assertThat(source.getRefreshKey(state)).isNull()
+        invalidate(source)
+    }
+
+    @Test
+    fun testThatInvalidPageKeyEndsThePagination() = runTest {
+        var validKeys = true
+        val source = createSource(validatePageKey = { validKeys }, cursorValues = null)
+        val first = source.refresh(loadSize = 10).asPage()
+
+        validKeys = false
+        val next = source.append(first.nextKey!!, loadSize = 10).asPage()
+        assertThat(next.data).isEmpty()
+        assertThat(next.prevKey).isNull()
+        assertThat(next.nextKey).isNull()
+
+        // a refresh reloads from the start
+        val refreshed = source.refresh(first.nextKey, loadSize = 10).asPage()
+        assertThat(refreshed.data.first().value).isEqualTo(0L)
+        invalidate(source)
+    }
+}
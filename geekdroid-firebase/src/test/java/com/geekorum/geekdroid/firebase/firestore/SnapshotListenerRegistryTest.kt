@@ -0,0 +1,167 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.firebase.firestore
+
+import com.google.common.truth.Truth.assertThat
+import com.google.firebase.firestore.FirebaseFirestoreException
+import com.google.firebase.firestore.QuerySnapshot
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+
+class SnapshotListenerRegistryTest {
+
+    private lateinit var collection: FakeCollection
+
+    @BeforeTest
+    fun setUp() {
+        collection = FakeCollection()
+        collection.setAll(5)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        collection.shutdown()
+    }
+
+    private fun TestScope.createRegistry(): Pair<SnapshotListenerRegistry, CoroutineScope> {
+        val scope = CoroutineScope(SupervisorJob() + StandardTestDispatcher(testScheduler))
+        return SnapshotListenerRegistry(lingerMillis = LINGER_MILLIS, scope = scope) to scope
+    }
+
+    private fun TestScope.collectSnapshots(registry: SnapshotListenerRegistry, snapshots: MutableList<QuerySnapshot>) =
+        backgroundScope.launch {
+            registry.snapshots(collection.query).collect { snapshots += it }
+        }
+
+    @Test
+    fun testThatCollectorsShareOneListener() = runTest {
+        val (registry, registryScope) = createRegistry()
+        val first = mutableListOf<QuerySnapshot>()
+        val second = mutableListOf<QuerySnapshot>()
+        collectSnapshots(registry, first)
+        collectSnapshots(registry, second)
+        runCurrent()
+
+        collection.set(FakeCollection.documentId(1), mapOf("value" to 100L))
+        runCurrent()
+        assertThat(collection.registeredListeners.get()).isEqualTo(1)
+        assertThat(first).hasSize(2)
+        assertThat(second).isEqualTo(first)
+        registryScope.cancel()
+    }
+
+    @Test
+    fun testThatListenerIsRemovedAfterTheLingerPeriod() = runTest {
+        val (registry, registryScope) = createRegistry()
+        val collector = collectSnapshots(registry, mutableListOf())
+        runCurrent()
+        assertThat(collection.activeListeners.get()).isEqualTo(1)
+
+        collector.cancel()
+        advanceTimeBy(LINGER_MILLIS - 1)
+        assertThat(collection.activeListeners.get()).isEqualTo(1)
+        advanceTimeBy(2)
+        assertThat(collection.activeListeners.get()).isEqualTo(0)
+        registryScope.cancel()
+    }
+
+    @Test
+    fun testThatListenerIsReusedDuringTheLingerPeriod() = runTest {
+        val (registry, registryScope) = createRegistry()
+        val collector = collectSnapshots(registry, mutableListOf())
+        runCurrent()
+        collector.cancel()
+        advanceTimeBy(LINGER_MILLIS / 2)
+
+        val snapshots = mutableListOf<QuerySnapshot>()
+        collectSnapshots(registry, snapshots)
+        runCurrent()
+        // the latest snapshot is replayed
+        assertThat(snapshots).hasSize(1)
+        advanceTimeBy(LINGER_MILLIS * 2)
+        assertThat(collection.registeredListeners.get()).isEqualTo(1)
+        assertThat(collection.activeListeners.get()).isEqualTo(1)
+        registryScope.cancel()
+    }
+
+    @Test
+    fun testThatSlowCollectorDoesntHoldBackTheOthers() = runTest {
+        val (registry, registryScope) = createRegistry()
+        val blocked = CompletableDeferred<Unit>()
+        backgroundScope.launch {
+            registry.snapshots(collection.query).collect { blocked.await() }
+        }
+        val snapshots = mutableListOf<QuerySnapshot>()
+        collectSnapshots(registry, snapshots)
+        runCurrent()
+
+        repeat(3) {
+            collection.set(FakeCollection.documentId(it), mapOf("value" to 100L + it))
+            runCurrent()
+        }
+        assertThat(snapshots).hasSize(4)
+        assertThat(snapshots.last().documents.first().get("value")).isEqualTo(100L)
+        registryScope.cancel()
+    }
+
+    @Test
+    fun testThatFailedListenerIsReplaced() = runTest {
+        val (registry, registryScope) = createRegistry()
+        val errors = mutableListOf<Throwable>()
+        backgroundScope.launch {
+            registry.snapshots(collection.query)
+                .catch { errors += it }
+                .collect { }
+        }
+        runCurrent()
+
+        val error = FirebaseFirestoreException("permission denied", FirebaseFirestoreException.Code.PERMISSION_DENIED)
+        collection.failListeners(error)
+        runCurrent()
+        assertThat(errors).containsExactly(error)
+
+        val snapshots = mutableListOf<QuerySnapshot>()
+        collectSnapshots(registry, snapshots)
+        runCurrent()
+        assertThat(snapshots).hasSize(1)
+        assertThat(collection.registeredListeners.get()).isEqualTo(2)
+        advanceUntilIdle()
+        registryScope.cancel()
+    }
+
+    companion object {
+        private const val LINGER_MILLIS = 1000L
+    }
+}
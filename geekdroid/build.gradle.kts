@@ -83,6 +83,7 @@ dependencies {
     api(libs.coordinatorlayout)
     implementation(libs.annotation)
     implementation(libs.core.ktx)
+    implementation(libs.tracing)
     api(libs.fragment.ktx)
 
     api(libs.okhttp)
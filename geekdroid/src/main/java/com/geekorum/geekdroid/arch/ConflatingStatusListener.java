@@ -0,0 +1,152 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.arch;
+
+import android.view.Choreographer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Listener;
+import com.geekorum.geekdroid.arch.PagingRequestHelper.StatusReport;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Listener} which conflates the {@link StatusReport}s received in bursts and delivers
+ * only the latest one to a delegate listener.
+ * <p>
+ * A sample usage to update the UI at most once per frame looks like this:
+ * <pre>
+ * helper.addListener(ConflatingStatusListener.onNextFrame(report -> {
+ *     // update the UI
+ * }));
+ * </pre>
+ * The delegate is never called concurrently, and never receives a report older than one it already
+ * received, even if the executor runs the deliveries on several threads.
+ */
+@SuppressWarnings("removal")
+public class ConflatingStatusListener implements Listener {
+    private final Listener mDelegate;
+    private final Executor mScheduler;
+    private final AtomicReference<PendingReport> mPendingReport = new AtomicReference<>();
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final Runnable mDeliverRunnable = this::deliver;
+    // held while calling the delegate
+    private final Object mDeliveryLock = new Object();
+    private long mLastDeliveredSequence = -1;
+
+    /**
+     * Creates a ConflatingStatusListener delivering the reports on the given {@link Executor}.
+     * <p>
+     * All reports received until the executor runs the delivery are conflated.
+     *
+     * @param delegate The listener to deliver the reports to.
+     * @param executor The executor on which the reports are delivered.
+     */
+    public ConflatingStatusListener(@NonNull Listener delegate, @NonNull Executor executor) {
+        mDelegate = delegate;
+        mScheduler = executor;
+    }
+
+    /**
+     * Creates a ConflatingStatusListener delivering the reports on the main thread, at most once
+     * per frame.
+     *
+     * @param delegate The listener to deliver the reports to.
+     */
+    @MainThread
+    @NonNull
+    public static ConflatingStatusListener onNextFrame(@NonNull Listener delegate) {
+        // Choreographer is per thread, but can be posted to from any thread
+        final Choreographer choreographer = Choreographer.getInstance();
+        return new ConflatingStatusListener(delegate,
+                deliver -> choreographer.postFrameCallback(frameTimeNanos -> deliver.run()));
+    }
+
+    /**
+     * Creates a ConflatingStatusListener delivering the reports received within a time window.
+     *
+     * @param delegate  The listener to deliver the reports to.
+     * @param scheduler The scheduler used to wait for the end of the window.
+     * @param window    The duration of the window, starting at the first report received.
+     * @param unit      The unit of {@code window}.
+     * @param executor  The executor on which the reports are delivered.
+     */
+    @NonNull
+    public static ConflatingStatusListener withWindow(@NonNull Listener delegate,
+                                                      @NonNull ScheduledExecutorService scheduler,
+                                                      long window, @NonNull TimeUnit unit,
+                                                      @NonNull Executor executor) {
+        return new ConflatingStatusListener(delegate,
+                deliver -> scheduler.schedule(() -> executor.execute(deliver), window, unit));
+    }
+
+    @AnyThread
+    @Override
+    public void onStatusChange(@NonNull StatusReport report) {
+        final PendingReport pending = new PendingReport(report, mNextSequence.getAndIncrement());
+        while (true) {
+            final PendingReport current = mPendingReport.get();
+            if (current != null && current.mSequence > pending.mSequence) {
+                // a concurrent call already replaced it with a newer report
+                return;
+            }
+            if (mPendingReport.compareAndSet(current, pending)) {
+                if (current == null) {
+                    mScheduler.execute(mDeliverRunnable);
+                }
+                return;
+            }
+        }
+    }
+
+    private void deliver() {
+        final PendingReport pending = mPendingReport.getAndSet(null);
+        if (pending == null) {
+            return;
+        }
+        synchronized (mDeliveryLock) {
+            // a newer report may have been taken and delivered by a delivery running on another thread
+            if (pending.mSequence <= mLastDeliveredSequence) {
+                return;
+            }
+            mLastDeliveredSequence = pending.mSequence;
+            mDelegate.onStatusChange(pending.mReport);
+        }
+    }
+
+    private static final class PendingReport {
+        final StatusReport mReport;
+        final long mSequence;
+
+        PendingReport(StatusReport report, long sequence) {
+            mReport = report;
+            mSequence = sequence;
+        }
+    }
+}
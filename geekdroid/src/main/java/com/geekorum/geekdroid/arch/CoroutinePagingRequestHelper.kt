@@ -0,0 +1,150 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status
+import com.geekorum.geekdroid.arch.PagingRequestHelper.StatusReport
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A suspending version of [PagingRequestHelper].
+ *
+ * Requests are suspend functions launched in [scope], so they are cancelled with it, or
+ * explicitly with [cancel], e.g. when the PagingSource they load data for is invalidated.
+ * A cancelled request is neither a success nor a failure, its [RequestType] just goes back to
+ * [Status.SUCCESS], like when no request was run.
+ */
+class CoroutinePagingRequestHelper(
+    private val scope: CoroutineScope
+) {
+    private val runningJobs = AtomicReferenceArray<Job?>(RequestType.entries.size)
+    private val failedRequests = AtomicReferenceArray<(suspend () -> Unit)?>(RequestType.entries.size)
+
+    private val _status = MutableStateFlow(
+        StatusReport(Status.SUCCESS, Status.SUCCESS, Status.SUCCESS,
+            arrayOfNulls(RequestType.entries.size),
+            LongArray(RequestType.entries.size) { StatusReport.NO_RETRY_SCHEDULED })
+    )
+
+    /**
+     * The current status of the requests.
+     */
+    val status: StateFlow<StatusReport> = _status.asStateFlow()
+
+    /**
+     * Launch the given [request] if no other request of the given [type] is running.
+     *
+     * If the request throws, it is recorded as a failure and can be retried with [retryAllFailed].
+     *
+     * @return the [Job] of the request or null if another request is running
+     */
+    fun runIfNotRunning(type: RequestType, request: suspend () -> Unit): Job? {
+        val index = type.ordinal
+        val job = scope.launch(start = CoroutineStart.LAZY) {
+            val error = try {
+                request()
+                null
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                failedRequests.set(index, request)
+                e
+            }
+            // keep the slot until the status is updated, so that no new request can be overridden
+            updateStatus(type, if (error == null) Status.SUCCESS else Status.FAILED, error)
+            runningJobs.compareAndSet(index, coroutineContext[Job], null)
+        }
+        if (!runningJobs.compareAndSet(index, null, job)) {
+            job.cancel()
+            return null
+        }
+        failedRequests.set(index, null)
+        updateStatus(type, Status.RUNNING, null)
+        // the job may be cancelled before even starting, if the scope is
+        job.invokeOnCompletion { cause ->
+            if (cause != null && runningJobs.get(index) === job) {
+                updateStatus(type, Status.SUCCESS, null)
+                runningJobs.compareAndSet(index, job, null)
+            }
+        }
+        job.start()
+        return job
+    }
+
+    /**
+     * Cancel the running request of the given [type], if any.
+     */
+    fun cancel(type: RequestType) {
+        runningJobs.get(type.ordinal)?.cancel()
+    }
+
+    /**
+     * Cancel all the running requests.
+     */
+    fun cancelAll() {
+        RequestType.entries.forEach { cancel(it) }
+    }
+
+    /**
+     * Retries all failed requests.
+     *
+     * @return true if any request is retried
+     */
+    fun retryAllFailed(): Boolean {
+        var retried = false
+        for (type in RequestType.entries) {
+            val failed = failedRequests.getAndSet(type.ordinal, null) ?: continue
+            retried = runIfNotRunning(type, failed) != null || retried
+        }
+        return retried
+    }
+
+    private fun updateStatus(type: RequestType, status: Status, error: Throwable?) {
+        _status.update { report ->
+            val statuses = RequestType.entries.map {
+                if (it == type) status else report.statusFor(it)
+            }
+            val errors = Array(RequestType.entries.size) {
+                if (it == type.ordinal) error else report.getErrorFor(RequestType.entries[it])
+            }
+            StatusReport(statuses[0], statuses[1], statuses[2], errors,
+                LongArray(RequestType.entries.size) { StatusReport.NO_RETRY_SCHEDULED })
+        }
+    }
+
+    private fun StatusReport.statusFor(type: RequestType): Status = when (type) {
+        RequestType.INITIAL -> initial
+        RequestType.BEFORE -> before
+        RequestType.AFTER -> after
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.arch;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link PagingRequestHelper.FailedRequestJournal} persisting the failures in an append-only
+ * file.
+ * <p>
+ * Writes are made on the given {@link Executor}, only when the persisted state changes. They are
+ * queued in the order of the state changes, so any {@link Executor} can be used. The file is
+ * compacted when it is read.
+ */
+@SuppressWarnings("removal")
+public class FileFailedRequestJournal implements PagingRequestHelper.FailedRequestJournal {
+    private static final String TAG = "FailedRequestJournal";
+    private static final byte RECORD_FAILURE = 1;
+    private static final byte RECORD_CLEAR = 2;
+    // state of a type before the file is read, a previous process may have persisted a failure
+    private static final Object UNKNOWN = new Object();
+
+    private final File mFile;
+    private final Executor mIoExecutor;
+    // held while accessing the file, taken before mStateLock
+    private final Object mFileLock = new Object();
+    private final Object mStateLock = new Object();
+    // descriptors of the failures, as they will be once all the pending records are written
+    private final Object[] mFailures = new Object[RequestType.values().length];
+    private final ArrayDeque<Record> mPendingRecords = new ArrayDeque<>();
+    private boolean mWriteScheduled;
+
+    /**
+     * Creates a new FileFailedRequestJournal.
+     *
+     * @param file       The file where the failures are persisted.
+     * @param ioExecutor The {@link Executor} used to write the file.
+     */
+    public FileFailedRequestJournal(@NonNull File file, @NonNull Executor ioExecutor) {
+        mFile = file;
+        mIoExecutor = ioExecutor;
+        Arrays.fill(mFailures, UNKNOWN);
+    }
+
+    @Override
+    public void recordFailure(@NonNull RequestType type, @NonNull String descriptor) {
+        final boolean scheduleWrite;
+        synchronized (mStateLock) {
+            final Object previous = mFailures[type.ordinal()];
+            mFailures[type.ordinal()] = descriptor;
+            if (descriptor.equals(previous)) {
+                return;
+            }
+            scheduleWrite = enqueue(new Record(RECORD_FAILURE, type, descriptor));
+        }
+        if (scheduleWrite) {
+            mIoExecutor.execute(this::writePendingRecords);
+        }
+    }
+
+    @Override
+    public void clear(@NonNull RequestType type) {
+        final boolean scheduleWrite;
+        synchronized (mStateLock) {
+            final Object previous = mFailures[type.ordinal()];
+            mFailures[type.ordinal()] = null;
+            if (previous == null) {
+                return;
+            }
+            scheduleWrite = enqueue(new Record(RECORD_CLEAR, type, ""));
+        }
+        if (scheduleWrite) {
+            mIoExecutor.execute(this::writePendingRecords);
+        }
+    }
+
+    /**
+     * Queues a record, must be called with mStateLock held.
+     *
+     * @return True if a write must be scheduled.
+     */
+    private boolean enqueue(@NonNull Record record) {
+        mPendingRecords.add(record);
+        if (mWriteScheduled) {
+            return false;
+        }
+        mWriteScheduled = true;
+        return true;
+    }
+
+    private void writePendingRecords() {
+        synchronized (mFileLock) {
+            writePendingRecordsLocked();
+        }
+    }
+
+    private void writePendingRecordsLocked() {
+        final List<Record> records;
+        synchronized (mStateLock) {
+            records = new ArrayList<>(mPendingRecords);
+            mPendingRecords.clear();
+            mWriteScheduled = false;
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile, true)))) {
+            for (Record record : records) {
+                writeRecord(out, record.mRecord, record.mType, record.mDescriptor);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write failed request journal", e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte record, RequestType type,
+                                    String descriptor) throws IOException {
+        out.writeByte(record);
+        out.writeByte(type.ordinal());
+        out.writeUTF(descriptor);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The failures recorded or cleared while reading are taken into account.
+     */
+    @WorkerThread
+    @NonNull
+    @Override
+    public Map<RequestType, String> readFailures() {
+        synchronized (mFileLock) {
+            // the file must have all the records before being read and compacted
+            writePendingRecordsLocked();
+            final Map<RequestType, String> failures = new EnumMap<>(RequestType.class);
+            int records = 0;
+            boolean corrupted = false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)))) {
+                int record;
+                while ((record = in.read()) != -1) {
+                    final RequestType type = RequestType.values()[in.readByte()];
+                    final String descriptor = in.readUTF();
+                    records++;
+                    if (record == RECORD_FAILURE) {
+                        failures.put(type, descriptor);
+                    } else {
+                        failures.remove(type);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // nothing persisted yet
+            } catch (EOFException e) {
+                // a record truncated by the death of the process
+                corrupted = true;
+            } catch (IOException | IndexOutOfBoundsException e) {
+                Log.w(TAG, "Unable to read failed request journal", e);
+                corrupted = true;
+            }
+            // the invalid bytes are removed, records appended after them would be lost
+            if (corrupted || records > failures.size()) {
+                compact(failures);
+            }
+            synchronized (mStateLock) {
+                final Map<RequestType, String> result = new EnumMap<>(RequestType.class);
+                for (RequestType type : RequestType.values()) {
+                    // a pending record is newer than the file
+                    if (!hasPendingRecord(type)) {
+                        mFailures[type.ordinal()] = failures.get(type);
+                    }
+                    final Object failure = mFailures[type.ordinal()];
+                    if (failure instanceof String) {
+                        result.put(type, (String) failure);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+
+    private boolean hasPendingRecord(@NonNull RequestType type) {
+        for (Record record : mPendingRecords) {
+            if (record.mType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void compact(@NonNull Map<RequestType, String> failures) {
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)))) {
+            for (Map.Entry<RequestType, String> failure : failures.entrySet()) {
+                writeRecord(out, RECORD_FAILURE, failure.getKey(), failure.getValue());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact failed request journal", e);
+            return;
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            Log.w(TAG, "Unable to compact failed request journal");
+        }
+    }
+
+    private static final class Record {
+        final byte mRecord;
+        @NonNull
+        final RequestType mType;
+        @NonNull
+        final String mDescriptor;
+
+        Record(byte record, @NonNull RequestType type, @NonNull String descriptor) {
+            mRecord = record;
+            mType = type;
+            mDescriptor = descriptor;
+        }
+    }
+}
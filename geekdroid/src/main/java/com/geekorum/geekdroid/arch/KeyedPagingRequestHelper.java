@@ -0,0 +1,352 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.arch;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A variant of {@link PagingRequestHelper} tracking requests for an unbounded set of keys, e.g.
+ * the boundaries of each section of a paginated grid, instead of the 3
+ * {@link PagingRequestHelper.RequestType}s.
+ * <p>
+ * Only the keys with a running or a failed request are kept in memory, a key in the
+ * {@link Status#SUCCESS SUCCESS} status is the same as a key never seen. The number of failed
+ * requests kept for {@link #retryAllFailed()} is bounded, the oldest ones are evicted first.
+ * An evicted key is forgotten: it is not retried anymore and {@link #getStatus(Object)} returns
+ * {@link Status#SUCCESS SUCCESS} for it, but the listeners are notified of the eviction with
+ * {@link Listener#onFailedKeyEvicted(Object, Throwable)}, not as a success.
+ * <p>
+ * Listeners are notified of each change of status, for the key which changed only.
+ *
+ * @param <K> The type of the keys. It must implement {@link Object#equals(Object)} and
+ *            {@link Object#hashCode()}.
+ */
+@SuppressWarnings("removal")
+public class KeyedPagingRequestHelper<K> {
+    private final Executor mRetryService;
+    private final int mMaxFailedKeys;
+    private final ConcurrentHashMap<K, KeyState<K>> mStates = new ConcurrentHashMap<>();
+    // keys in the FAILED status with a request to retry, oldest first. Guarded by itself
+    private final LinkedHashSet<K> mFailedKeys = new LinkedHashSet<>();
+    @NonNull
+    final CopyOnWriteArrayList<Listener<K>> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a new KeyedPagingRequestHelper.
+     *
+     * @param retryService  The {@link Executor} that can run the retry actions.
+     * @param maxFailedKeys The maximum number of failed requests kept to be retried.
+     */
+    public KeyedPagingRequestHelper(@NonNull Executor retryService, int maxFailedKeys) {
+        if (maxFailedKeys < 0) {
+            throw new IllegalArgumentException("maxFailedKeys must be >= 0");
+        }
+        mRetryService = retryService;
+        mMaxFailedKeys = maxFailedKeys;
+    }
+
+    /**
+     * Adds a new listener that will be notified when any request changes {@link Status state}.
+     *
+     * @param listener The listener that will be notified each time a request's status changes.
+     * @return True if it is added, false otherwise (e.g. it already exists in the list).
+     */
+    @AnyThread
+    public boolean addListener(@NonNull Listener<K> listener) {
+        return mListeners.add(listener);
+    }
+
+    /**
+     * Removes the given listener from the listeners list.
+     *
+     * @param listener The listener that will be removed.
+     * @return True if the listener is removed, false otherwise (e.g. it never existed)
+     */
+    public boolean removeListener(@NonNull Listener<K> listener) {
+        return mListeners.remove(listener);
+    }
+
+    /**
+     * Runs the given {@link Request} if no other request with the given key is already running.
+     * <p>
+     * If run, the request will be run in the current thread.
+     *
+     * @param key     The key of the request.
+     * @param request The request to run.
+     * @return True if the request is run, false otherwise.
+     */
+    @AnyThread
+    public boolean runIfNotRunning(@NonNull K key, @NonNull Request request) {
+        final KeyState<K> running = new KeyState<>(Status.RUNNING, null, null);
+        KeyState<K> current;
+        do {
+            current = mStates.get(key);
+            if (current != null && current.mStatus == Status.RUNNING) {
+                return false;
+            }
+        } while (current == null ? mStates.putIfAbsent(key, running) != null
+                : !mStates.replace(key, current, running));
+        if (current != null && current.mFailed != null) {
+            synchronized (mFailedKeys) {
+                mFailedKeys.remove(key);
+            }
+        }
+        dispatchStatusChange(key, Status.RUNNING, null);
+        new RequestWrapper<>(key, request, this).run();
+        return true;
+    }
+
+    void recordResult(@NonNull RequestWrapper<K> wrapper, @Nullable Throwable throwable) {
+        final K key = wrapper.mKey;
+        if (throwable == null) {
+            mStates.remove(key);
+            dispatchStatusChange(key, Status.SUCCESS, null);
+            return;
+        }
+        final List<K> evictedKeys = new ArrayList<>();
+        final List<Throwable> evictedErrors = new ArrayList<>();
+        synchronized (mFailedKeys) {
+            mStates.put(key, new KeyState<>(Status.FAILED, wrapper, throwable));
+            mFailedKeys.add(key);
+            final Iterator<K> oldest = mFailedKeys.iterator();
+            while (mFailedKeys.size() > mMaxFailedKeys) {
+                final K evictedKey = oldest.next();
+                oldest.remove();
+                final KeyState<K> state = mStates.get(evictedKey);
+                if (state != null && state.mStatus == Status.FAILED
+                        && mStates.remove(evictedKey, state)) {
+                    evictedKeys.add(evictedKey);
+                    evictedErrors.add(state.mLastError);
+                }
+            }
+        }
+        dispatchStatusChange(key, Status.FAILED, throwable);
+        for (int i = 0; i < evictedKeys.size(); i++) {
+            dispatchEviction(evictedKeys.get(i), evictedErrors.get(i));
+        }
+    }
+
+    private void dispatchEviction(@NonNull K key, @Nullable Throwable error) {
+        for (Listener<K> listener : mListeners) {
+            listener.onFailedKeyEvicted(key, error);
+        }
+    }
+
+    private void dispatchStatusChange(@NonNull K key, @NonNull Status status,
+                                      @Nullable Throwable error) {
+        for (Listener<K> listener : mListeners) {
+            listener.onStatusChange(key, status, error);
+        }
+    }
+
+    /**
+     * Returns the status of the requests for the given key.
+     */
+    @NonNull
+    public Status getStatus(@NonNull K key) {
+        final KeyState<K> state = mStates.get(key);
+        return state == null ? Status.SUCCESS : state.mStatus;
+    }
+
+    /**
+     * Returns the error of the last request for the given key, or {@code null} if it did not
+     * fail.
+     */
+    @Nullable
+    public Throwable getError(@NonNull K key) {
+        final KeyState<K> state = mStates.get(key);
+        return state == null ? null : state.mLastError;
+    }
+
+    /**
+     * Retries all failed requests.
+     *
+     * @return True if any request is retried, false otherwise.
+     */
+    public boolean retryAllFailed() {
+        final List<RequestWrapper<K>> toBeRetried = new ArrayList<>();
+        synchronized (mFailedKeys) {
+            for (K key : mFailedKeys) {
+                final KeyState<K> state = mStates.get(key);
+                if (state != null && state.mFailed != null
+                        && mStates.replace(key, state, state.withoutFailed())) {
+                    toBeRetried.add(state.mFailed);
+                }
+            }
+            mFailedKeys.clear();
+        }
+        for (RequestWrapper<K> failed : toBeRetried) {
+            failed.retry(mRetryService);
+        }
+        return !toBeRetried.isEmpty();
+    }
+
+    static class RequestWrapper<K> implements Runnable {
+        @NonNull
+        final K mKey;
+        @NonNull
+        final Request mRequest;
+        @NonNull
+        final KeyedPagingRequestHelper<K> mHelper;
+
+        RequestWrapper(@NonNull K key, @NonNull Request request,
+                       @NonNull KeyedPagingRequestHelper<K> helper) {
+            mKey = key;
+            mRequest = request;
+            mHelper = helper;
+        }
+
+        @Override
+        public void run() {
+            mRequest.run(new Request.Callback(this));
+        }
+
+        void retry(Executor service) {
+            service.execute(() -> mHelper.runIfNotRunning(mKey, mRequest));
+        }
+    }
+
+    /**
+     * Runner class that runs a request tracked by the {@link KeyedPagingRequestHelper}.
+     * <p>
+     * When a request is invoked, it must call one of {@link Callback#recordFailure(Throwable)}
+     * or {@link Callback#recordSuccess()} once and only once. This call
+     * can be made any time. Until that method call is made, {@link KeyedPagingRequestHelper}
+     * will consider the request is running.
+     */
+    @FunctionalInterface
+    public interface Request {
+        /**
+         * Should run the request and call the given {@link Callback} with the result of the
+         * request.
+         *
+         * @param callback The callback that should be invoked with the result.
+         */
+        void run(Callback callback);
+
+        /**
+         * Callback class provided to the {@link #run(Callback)} method to report the result.
+         */
+        class Callback {
+            private final AtomicBoolean mCalled = new AtomicBoolean();
+            private final RequestWrapper<?> mWrapper;
+
+            Callback(RequestWrapper<?> wrapper) {
+                mWrapper = wrapper;
+            }
+
+            /**
+             * Call this method when the request succeeds and new data is fetched.
+             */
+            public final void recordSuccess() {
+                record(null);
+            }
+
+            /**
+             * Call this method with the failure message and the request can be retried via
+             * {@link #retryAllFailed()}.
+             *
+             * @param throwable The error that occured while carrying out the request.
+             */
+            public final void recordFailure(@NonNull Throwable throwable) {
+                //noinspection ConstantConditions
+                if (throwable == null) {
+                    throw new IllegalArgumentException("You must provide a throwable describing"
+                            + " the error to record the failure");
+                }
+                record(throwable);
+            }
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            private void record(@Nullable Throwable throwable) {
+                if (mCalled.compareAndSet(false, true)) {
+                    ((RequestWrapper) mWrapper).mHelper.recordResult(mWrapper, throwable);
+                } else {
+                    throw new IllegalStateException(
+                            "already called recordSuccess or recordFailure");
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener interface to get notified by request status changes.
+     *
+     * @param <K> The type of the keys.
+     */
+    public interface Listener<K> {
+        /**
+         * Called when the status of the requests for a key has changed.
+         *
+         * @param key    The key of the requests.
+         * @param status The new status.
+         * @param error  The error of the request if it failed, {@code null} otherwise.
+         */
+        void onStatusChange(@NonNull K key, @NonNull Status status, @Nullable Throwable error);
+
+        /**
+         * Called when a failed key is evicted because there are more than the maximum number of
+         * failed requests. Its request won't be retried and the key is forgotten.
+         *
+         * @param key   The key of the evicted request.
+         * @param error The error of the evicted request.
+         */
+        default void onFailedKeyEvicted(@NonNull K key, @Nullable Throwable error) {
+        }
+    }
+
+    /**
+     * Immutable state of the requests of a key.
+     */
+    static final class KeyState<K> {
+        @NonNull
+        final Status mStatus;
+        @Nullable
+        final RequestWrapper<K> mFailed;
+        @Nullable
+        final Throwable mLastError;
+
+        KeyState(@NonNull Status status, @Nullable RequestWrapper<K> failed,
+                 @Nullable Throwable lastError) {
+            mStatus = status;
+            mFailed = failed;
+            mLastError = lastError;
+        }
+
+        KeyState<K> withoutFailed() {
+            return new KeyState<>(mStatus, null, mLastError);
+        }
+    }
+}
@@ -37,15 +37,22 @@ package com.geekorum.geekdroid.arch;
  * limitations under the License.
  */
 import androidx.annotation.AnyThread;
-import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 /**
  * A helper class for {@link androidx.paging.PagedList.BoundaryCallback BoundaryCallback}s and
  * {@link DataSource}s to help with tracking network requests.
@@ -127,15 +134,38 @@ import java.util.concurrent.atomic.AtomicBoolean;
 // from this sample.
 @Deprecated(forRemoval = true)
 public class PagingRequestHelper {
-    private final Object mLock = new Object();
+    // outcomes of runOrJoinInternal()
+    private static final int RUN = 0;
+    private static final int JOINED = 1;
+    private static final int REJECTED = 2;
+    private static final RequestType[] DEFERRED_RUN_ORDER =
+            {RequestType.AFTER, RequestType.BEFORE};
     private final Executor mRetryService;
-    @GuardedBy("mLock")
-    private final RequestQueue[] mRequestQueues = new RequestQueue[]
-            {new RequestQueue(RequestType.INITIAL),
-                    new RequestQueue(RequestType.BEFORE),
-                    new RequestQueue(RequestType.AFTER)};
+    @Nullable
+    private final ScheduledExecutorService mRetryScheduler;
+    @Nullable
+    private final RetryPolicy mRetryPolicy;
+    /**
+     * Each slot holds an immutable {@link RequestQueue}, swapped atomically on each transition.
+     */
+    private final AtomicReferenceArray<RequestQueue> mRequestQueues =
+            new AtomicReferenceArray<>(new RequestQueue[]{
+                    RequestQueue.idle(RequestType.INITIAL),
+                    RequestQueue.idle(RequestType.BEFORE),
+                    RequestQueue.idle(RequestType.AFTER)});
+    /**
+     * The last report sent to the listeners, or {@code null} if no report was sent since the
+     * last time the listener list was seen empty.
+     */
+    private final AtomicReference<StatusReport> mLastReport = new AtomicReference<>();
     @NonNull
     final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean mDeferBoundaryRequests;
+    @Nullable
+    volatile MetricsRecorder mMetricsRecorder;
+    private final AtomicInteger mNextRequestId = new AtomicInteger();
+    @Nullable
+    private volatile FailedRequestJournal mFailedRequestJournal;
     /**
      * Creates a new PagingRequestHelper with the given {@link Executor} which is used to run
      * retry actions.
@@ -144,6 +174,114 @@ public class PagingRequestHelper {
      */
     public PagingRequestHelper(@NonNull Executor retryService) {
         mRetryService = retryService;
+        mRetryScheduler = null;
+        mRetryPolicy = null;
+    }
+    /**
+     * Creates a new PagingRequestHelper which automatically retries failed requests according
+     * to the given {@link RetryPolicy}.
+     * <p>
+     * Failed requests can still be retried immediately with {@link #retryAllFailed()}.
+     *
+     * @param retryService   The {@link Executor} that can run the retry actions.
+     * @param retryScheduler The {@link ScheduledExecutorService} used to wait before a retry.
+     * @param retryPolicy    The policy deciding when to retry a failed request.
+     */
+    public PagingRequestHelper(@NonNull Executor retryService,
+                               @NonNull ScheduledExecutorService retryScheduler,
+                               @NonNull RetryPolicy retryPolicy) {
+        mRetryService = retryService;
+        mRetryScheduler = retryScheduler;
+        mRetryPolicy = retryPolicy;
+    }
+    /**
+     * Sets whether the {@link RequestType#BEFORE BEFORE} and {@link RequestType#AFTER AFTER}
+     * requests should wait for the running {@link RequestType#INITIAL INITIAL} request to
+     * complete before being run.
+     * <p>
+     * This avoids boundary loads to compete with the initial load for the network, which shortens
+     * the time to display the first page. Deferred requests are considered
+     * {@link Status#RUNNING running} and, once the initial request completes, the
+     * {@link RequestType#AFTER AFTER} request, close to the visible items, is run before the
+     * {@link RequestType#BEFORE BEFORE} one.
+     *
+     * @param defer True to defer the boundary requests. Default to false.
+     */
+    @AnyThread
+    public void setDeferBoundaryRequests(boolean defer) {
+        mDeferBoundaryRequests = defer;
+    }
+    /**
+     * Sets the {@link MetricsRecorder} notified of the lifecycle of the requests.
+     *
+     * @param recorder The recorder or {@code null} to stop recording.
+     */
+    @AnyThread
+    public void setMetricsRecorder(@Nullable MetricsRecorder recorder) {
+        mMetricsRecorder = recorder;
+    }
+    /**
+     * Sets the {@link FailedRequestJournal} which persists the failed requests, so they can be
+     * restored with {@link #restoreFailedRequests(RequestFactory)} after the process is killed.
+     * <p>
+     * Only failed requests implementing {@link JournaledRequest} are persisted.
+     *
+     * @param journal The journal or {@code null} to stop persisting failed requests.
+     */
+    @AnyThread
+    public void setFailedRequestJournal(@Nullable FailedRequestJournal journal) {
+        mFailedRequestJournal = journal;
+    }
+    /**
+     * Restores the failed requests persisted in the {@link FailedRequestJournal}, e.g. by a
+     * previous process.
+     * <p>
+     * Restored requests are failed, with a {@link RestoredFailureException} error, and are
+     * retried like any other failed request: according to the {@link RetryPolicy} if there is
+     * one, or with {@link #retryAllFailed()}. Request types which are already running or failed
+     * are not restored.
+     *
+     * @param factory The factory creating the requests from their descriptors.
+     * @return The number of restored requests.
+     */
+    @WorkerThread
+    public int restoreFailedRequests(@NonNull RequestFactory factory) {
+        final FailedRequestJournal journal = mFailedRequestJournal;
+        if (journal == null) {
+            throw new IllegalStateException("No FailedRequestJournal was set");
+        }
+        int restored = 0;
+        for (Map.Entry<RequestType, String> failure : journal.readFailures().entrySet()) {
+            final RequestType type = failure.getKey();
+            final Request request = factory.create(type, failure.getValue());
+            if (request == null) {
+                journal.clear(type);
+                continue;
+            }
+            final RequestWrapper wrapper = new RequestWrapper(request, this, type, null, 0);
+            final Throwable error = new RestoredFailureException(failure.getValue());
+            final long retryDelay = getRetryDelay(wrapper, error);
+            final long nextRetryTime = retryDelay >= 0
+                    ? System.currentTimeMillis() + retryDelay : StatusReport.NO_RETRY_SCHEDULED;
+            final int index = type.ordinal();
+            RequestQueue current;
+            do {
+                current = mRequestQueues.get(index);
+                if (current.mRunning != null || current.mFailed != null) {
+                    break;
+                }
+            } while (!mRequestQueues.compareAndSet(index, current,
+                    current.toFinished(wrapper, error, nextRetryTime)));
+            if (current.mRunning != null || current.mFailed != null) {
+                continue;
+            }
+            scheduleRetry(wrapper, retryDelay);
+            restored++;
+        }
+        if (restored > 0) {
+            dispatchReportIfChanged();
+        }
+        return restored;
     }
     /**
      * Adds a new listener that will be notified when any request changes {@link Status state}.
@@ -168,80 +306,198 @@ public class PagingRequestHelper {
      * Runs the given {@link Request} if no other requests in the given request type is already
      * running.
      * <p>
-     * If run, the request will be run in the current thread.
+     * If run, the request will be run in the current thread, unless it is a boundary request
+     * deferred by {@link #setDeferBoundaryRequests(boolean)} while the
+     * {@link RequestType#INITIAL INITIAL} request is running. It is then run later, in the thread
+     * completing the initial request.
      *
      * @param type    The type of the request.
      * @param request The request to run.
-     * @return True if the request is run, false otherwise.
+     * @return True if the request is run or deferred, false otherwise.
      */
     @SuppressWarnings("WeakerAccess")
     @AnyThread
     public boolean runIfNotRunning(@NonNull RequestType type, @NonNull Request request) {
-        boolean hasListeners = !mListeners.isEmpty();
-        StatusReport report = null;
-        synchronized (mLock) {
-            RequestQueue queue = mRequestQueues[type.ordinal()];
-            if (queue.mRunning != null) {
-                return false;
+        return runOrJoinInternal(type, null, request, null, 0) == RUN;
+    }
+    /**
+     * Runs the given {@link Request} if no other requests in the given request type is already
+     * running, or joins the running one if it was started with an equal {@code key}.
+     * <p>
+     * This allows to coalesce duplicate requests, e.g. several boundary callbacks asking for the
+     * items after the same boundary item. The {@code waiter} is notified of the result of the
+     * request that actually ran, whether it was started by this call or by a previous one.
+     * <p>
+     * If run, the request will be run in the current thread, unless it is a boundary request
+     * deferred by {@link #setDeferBoundaryRequests(boolean)} while the
+     * {@link RequestType#INITIAL INITIAL} request is running. It is then run later, in the thread
+     * completing the initial request.
+     *
+     * @param type    The type of the request.
+     * @param key     The key identifying the request, e.g. the id of the boundary item.
+     * @param request The request to run.
+     * @param waiter  An optional listener to notify with the result of the request.
+     * @return True if the request is run, deferred or joined, false if another request with a
+     * different key is running.
+     */
+    @AnyThread
+    public boolean runOrJoin(@NonNull RequestType type, @NonNull Object key,
+                             @NonNull Request request, @Nullable ResultListener waiter) {
+        return runOrJoinInternal(type, key, request, waiter, 0) != REJECTED;
+    }
+    private int runOrJoinInternal(@NonNull RequestType type, @Nullable Object key,
+                                  @NonNull Request request, @Nullable ResultListener waiter,
+                                  int attempt) {
+        final int index = type.ordinal();
+        final RequestWrapper wrapper = new RequestWrapper(request, this, type, key, attempt);
+        final boolean defer = mDeferBoundaryRequests && type != RequestType.INITIAL
+                && mRequestQueues.get(RequestType.INITIAL.ordinal()).mRunning != null;
+        RequestQueue current;
+        RequestQueue updated;
+        do {
+            current = mRequestQueues.get(index);
+            if (current.mRunning != null) {
+                if (key == null || !key.equals(current.mRunningKey)) {
+                    final MetricsRecorder recorder = mMetricsRecorder;
+                    if (recorder != null) {
+                        recorder.onRequestRejected(type);
+                    }
+                    return REJECTED;
+                }
+                if (waiter == null) {
+                    return JOINED;
+                }
+                updated = current.withWaiter(waiter);
+            } else {
+                updated = current.toRunning(request, key, waiter, defer ? wrapper : null);
+            }
+        } while (!mRequestQueues.compareAndSet(index, current, updated));
+        if (current.mRunning != null) {
+            return JOINED;
+        }
+        dispatchReportIfChanged();
+        if (defer) {
+            // the initial request may have completed before the deferred one was recorded
+            if (mRequestQueues.get(RequestType.INITIAL.ordinal()).mRunning == null) {
+                runDeferredRequests();
+            }
+        } else {
+            wrapper.run();
+        }
+        return RUN;
+    }
+    /**
+     * Runs the boundary requests deferred while the initial request was running, the
+     * {@link RequestType#AFTER AFTER} one first.
+     */
+    private void runDeferredRequests() {
+        for (RequestType type : DEFERRED_RUN_ORDER) {
+            final int index = type.ordinal();
+            RequestQueue current;
+            do {
+                current = mRequestQueues.get(index);
+                if (current.mDeferred == null) {
+                    break;
+                }
+            } while (!mRequestQueues.compareAndSet(index, current, current.withoutDeferred()));
+            if (current.mDeferred != null) {
+                current.mDeferred.run();
             }
-            queue.mRunning = request;
-            queue.mStatus = Status.RUNNING;
-            queue.mFailed = null;
-            queue.mLastError = null;
-            if (hasListeners) {
-                report = prepareStatusReportLocked();
+        }
+    }
+    /**
+     * Sends a new {@link StatusReport} to the listeners if the current state differs from the
+     * last one dispatched. No report is allocated when there is no listener.
+     */
+    private void dispatchReportIfChanged() {
+        if (mListeners.isEmpty()) {
+            mLastReport.set(null);
+            return;
+        }
+        while (true) {
+            final StatusReport last = mLastReport.get();
+            final RequestQueue initial = mRequestQueues.get(0);
+            final RequestQueue before = mRequestQueues.get(1);
+            final RequestQueue after = mRequestQueues.get(2);
+            if (last != null && last.matches(initial, before, after)) {
+                return;
+            }
+            final StatusReport report = new StatusReport(initial.mStatus, before.mStatus,
+                    after.mStatus, new Throwable[]{
+                            initial.mLastError, before.mLastError, after.mLastError},
+                    new long[]{
+                            initial.mNextRetryTime, before.mNextRetryTime, after.mNextRetryTime});
+            if (mLastReport.compareAndSet(last, report)) {
+                dispatchReport(report);
+                return;
             }
         }
-        if (report != null) {
-            dispatchReport(report);
-        }
-        final RequestWrapper wrapper = new RequestWrapper(request, this, type);
-        wrapper.run();
-        return true;
-    }
-    @GuardedBy("mLock")
-    private StatusReport prepareStatusReportLocked() {
-        Throwable[] errors = new Throwable[]{
-                mRequestQueues[0].mLastError,
-                mRequestQueues[1].mLastError,
-                mRequestQueues[2].mLastError
-        };
-        return new StatusReport(
-                getStatusForLocked(RequestType.INITIAL),
-                getStatusForLocked(RequestType.BEFORE),
-                getStatusForLocked(RequestType.AFTER),
-                errors
-        );
-    }
-    @GuardedBy("mLock")
-    private Status getStatusForLocked(RequestType type) {
-        return mRequestQueues[type.ordinal()].mStatus;
     }
     @AnyThread
     @VisibleForTesting
     void recordResult(@NonNull RequestWrapper wrapper, @Nullable Throwable throwable) {
-        StatusReport report = null;
-        final boolean success = throwable == null;
-        boolean hasListeners = !mListeners.isEmpty();
-        synchronized (mLock) {
-            RequestQueue queue = mRequestQueues[wrapper.mType.ordinal()];
-            queue.mRunning = null;
-            queue.mLastError = throwable;
-            if (success) {
-                queue.mFailed = null;
-                queue.mStatus = Status.SUCCESS;
+        final MetricsRecorder recorder = mMetricsRecorder;
+        if (recorder != null && wrapper.mStartTimeNanos != 0) {
+            recorder.onRequestCompleted(wrapper.mType, wrapper.mRequestId, wrapper.mAttempt,
+                    System.nanoTime() - wrapper.mStartTimeNanos, throwable);
+        }
+        final FailedRequestJournal journal = mFailedRequestJournal;
+        if (journal != null) {
+            if (throwable != null && wrapper.mRequest instanceof JournaledRequest) {
+                journal.recordFailure(wrapper.mType,
+                        ((JournaledRequest) wrapper.mRequest).getDescriptor());
             } else {
-                queue.mFailed = wrapper;
-                queue.mStatus = Status.FAILED;
-            }
-            if (hasListeners) {
-                report = prepareStatusReportLocked();
+                journal.clear(wrapper.mType);
             }
         }
-        if (report != null) {
-            dispatchReport(report);
+        final int index = wrapper.mType.ordinal();
+        final long retryDelay = throwable != null ? getRetryDelay(wrapper, throwable) : -1;
+        final long nextRetryTime = retryDelay >= 0
+                ? System.currentTimeMillis() + retryDelay : StatusReport.NO_RETRY_SCHEDULED;
+        RequestQueue current;
+        do {
+            current = mRequestQueues.get(index);
+        } while (!mRequestQueues.compareAndSet(index, current,
+                current.toFinished(wrapper, throwable, nextRetryTime)));
+        scheduleRetry(wrapper, retryDelay);
+        dispatchReportIfChanged();
+        for (ResultListener waiter : current.mWaiters) {
+            waiter.onResult(throwable);
+        }
+        if (wrapper.mType == RequestType.INITIAL) {
+            runDeferredRequests();
+        }
+    }
+    private long getRetryDelay(@NonNull RequestWrapper wrapper, @NonNull Throwable throwable) {
+        if (mRetryPolicy == null) {
+            return -1;
+        }
+        return mRetryPolicy.getRetryDelayMillis(wrapper.mType, wrapper.mAttempt + 1, throwable);
+    }
+    private void scheduleRetry(@NonNull RequestWrapper wrapper, long retryDelay) {
+        if (retryDelay >= 0) {
+            //noinspection ConstantConditions mRetryScheduler is set with mRetryPolicy
+            mRetryScheduler.schedule(() -> retryIfStillFailed(wrapper), retryDelay,
+                    TimeUnit.MILLISECONDS);
         }
     }
+    /**
+     * Runs the scheduled retry of the given request, unless it was already retried or replaced by
+     * another request.
+     */
+    private void retryIfStillFailed(@NonNull RequestWrapper wrapper) {
+        final int index = wrapper.mType.ordinal();
+        RequestQueue current;
+        do {
+            current = mRequestQueues.get(index);
+            if (current.mFailed != wrapper) {
+                return;
+            }
+        } while (!mRequestQueues.compareAndSet(index, current, current.withoutFailed()));
+        // the retry is no longer scheduled
+        dispatchReportIfChanged();
+        wrapper.retry(mRetryService);
+    }
     private void dispatchReport(StatusReport report) {
         for (Listener listener : mListeners) {
             listener.onStatusChange(report);
@@ -255,12 +511,18 @@ public class PagingRequestHelper {
     public boolean retryAllFailed() {
         final RequestWrapper[] toBeRetried = new RequestWrapper[RequestType.values().length];
         boolean retried = false;
-        synchronized (mLock) {
-            for (int i = 0; i < RequestType.values().length; i++) {
-                toBeRetried[i] = mRequestQueues[i].mFailed;
-                mRequestQueues[i].mFailed = null;
-            }
+        for (int i = 0; i < toBeRetried.length; i++) {
+            RequestQueue current;
+            do {
+                current = mRequestQueues.get(i);
+                if (current.mFailed == null) {
+                    break;
+                }
+            } while (!mRequestQueues.compareAndSet(i, current, current.withoutFailed()));
+            toBeRetried[i] = current.mFailed;
         }
+        // the scheduled retries of the failed requests are cancelled
+        dispatchReportIfChanged();
         for (RequestWrapper failed : toBeRetried) {
             if (failed != null) {
                 failed.retry(mRetryService);
@@ -276,21 +538,38 @@ public class PagingRequestHelper {
         final PagingRequestHelper mHelper;
         @NonNull
         final RequestType mType;
+        @Nullable
+        final Object mKey;
+        /**
+         * Number of times this request was already retried.
+         */
+        final int mAttempt;
+        // only set when a MetricsRecorder is installed
+        int mRequestId;
+        long mStartTimeNanos;
         RequestWrapper(@NonNull Request request, @NonNull PagingRequestHelper helper,
-                       @NonNull RequestType type) {
+                       @NonNull RequestType type, @Nullable Object key, int attempt) {
             mRequest = request;
             mHelper = helper;
             mType = type;
+            mKey = key;
+            mAttempt = attempt;
         }
         @Override
         public void run() {
+            final MetricsRecorder recorder = mHelper.mMetricsRecorder;
+            if (recorder != null) {
+                mRequestId = mHelper.mNextRequestId.incrementAndGet();
+                mStartTimeNanos = System.nanoTime();
+                recorder.onRequestStarted(mType, mRequestId, mAttempt);
+            }
             mRequest.run(new Request.Callback(this, mHelper));
         }
         void retry(Executor service) {
             service.execute(new Runnable() {
                 @Override
                 public void run() {
-                    mHelper.runIfNotRunning(mType, mRequest);
+                    mHelper.runOrJoinInternal(mType, mKey, mRequest, null, mAttempt + 1);
                 }
             });
         }
@@ -357,11 +636,74 @@ public class PagingRequestHelper {
             }
         }
     }
+    /**
+     * A {@link Request} which can be persisted by a {@link FailedRequestJournal}.
+     */
+    public interface JournaledRequest extends Request {
+        /**
+         * Returns a descriptor of the request, allowing a {@link RequestFactory} to recreate it.
+         * For example the id of the boundary item.
+         */
+        @NonNull
+        String getDescriptor();
+    }
+    /**
+     * Factory recreating the requests persisted in a {@link FailedRequestJournal}.
+     */
+    public interface RequestFactory {
+        /**
+         * Creates the request for the given descriptor.
+         *
+         * @param type       The type of the request.
+         * @param descriptor The descriptor returned by {@link JournaledRequest#getDescriptor()}.
+         * @return The request or {@code null} if it is not needed anymore.
+         */
+        @Nullable
+        Request create(@NonNull RequestType type, @NonNull String descriptor);
+    }
+    /**
+     * Persistent storage of the failed requests, which survives the death of the process.
+     */
+    public interface FailedRequestJournal {
+        /**
+         * Persists the failure of a request. It replaces any previous failure of the same type.
+         * <p>
+         * Called on the thread recording the failure, so it should not block.
+         */
+        void recordFailure(@NonNull RequestType type, @NonNull String descriptor);
+        /**
+         * Removes the persisted failure of the given type, if any.
+         * <p>
+         * Called each time a request completes, so it should not block.
+         */
+        void clear(@NonNull RequestType type);
+        /**
+         * Reads the persisted failures.
+         *
+         * @return The descriptors of the failed requests per type.
+         */
+        @WorkerThread
+        @NonNull
+        Map<RequestType, String> readFailures();
+    }
+    /**
+     * The error of a failed request restored from a {@link FailedRequestJournal}.
+     */
+    public static class RestoredFailureException extends Exception {
+        public RestoredFailureException(@NonNull String descriptor) {
+            super("Request " + descriptor + " failed in a previous process");
+        }
+    }
     /**
      * Data class that holds the information about the current status of the ongoing requests
      * using this helper.
      */
     public static final class StatusReport {
+        /**
+         * Value returned by {@link #getNextRetryTimeFor(RequestType)} when no automatic retry is
+         * scheduled.
+         */
+        public static final long NO_RETRY_SCHEDULED = -1;
         /**
          * Status of the latest request that were submitted with {@link RequestType#INITIAL}.
          */
@@ -379,12 +721,30 @@ public class PagingRequestHelper {
         public final Status after;
         @NonNull
         private final Throwable[] mErrors;
+        @NonNull
+        private final long[] mNextRetryTimes;
         StatusReport(@NonNull Status initial, @NonNull Status before, @NonNull Status after,
-                     @NonNull Throwable[] errors) {
+                     @NonNull Throwable[] errors, @NonNull long[] nextRetryTimes) {
             this.initial = initial;
             this.before = before;
             this.after = after;
             this.mErrors = errors;
+            this.mNextRetryTimes = nextRetryTimes;
+        }
+        /**
+         * Checks whether this report describes the given request queues, without allocating.
+         */
+        boolean matches(@NonNull RequestQueue initial, @NonNull RequestQueue before,
+                        @NonNull RequestQueue after) {
+            return this.initial == initial.mStatus
+                    && this.before == before.mStatus
+                    && this.after == after.mStatus
+                    && mErrors[0] == initial.mLastError
+                    && mErrors[1] == before.mLastError
+                    && mErrors[2] == after.mLastError
+                    && mNextRetryTimes[0] == initial.mNextRetryTime
+                    && mNextRetryTimes[1] == before.mNextRetryTime
+                    && mNextRetryTimes[2] == after.mNextRetryTime;
         }
         /**
          * Convenience method to check if there are any running requests.
@@ -417,6 +777,17 @@ public class PagingRequestHelper {
         public Throwable getErrorFor(@NonNull RequestType type) {
             return mErrors[type.ordinal()];
         }
+        /**
+         * Returns the time of the next automatic retry for the given request type.
+         *
+         * @param type The request type for which the retry time should be returned.
+         * @return The time of the retry, in milliseconds since the epoch like
+         * {@link System#currentTimeMillis()}, or {@link #NO_RETRY_SCHEDULED} if the request for
+         * the given type will not be retried automatically.
+         */
+        public long getNextRetryTimeFor(@NonNull RequestType type) {
+            return mNextRetryTimes[type.ordinal()];
+        }
         @Override
         public String toString() {
             return "StatusReport{"
@@ -424,6 +795,7 @@ public class PagingRequestHelper {
                     + ", before=" + before
                     + ", after=" + after
                     + ", mErrors=" + Arrays.toString(mErrors)
+                    + ", mNextRetryTimes=" + Arrays.toString(mNextRetryTimes)
                     + '}';
         }
         @Override
@@ -434,6 +806,7 @@ public class PagingRequestHelper {
             if (initial != that.initial) return false;
             if (before != that.before) return false;
             if (after != that.after) return false;
+            if (!Arrays.equals(mNextRetryTimes, that.mNextRetryTimes)) return false;
             // Probably incorrect - comparing Object[] arrays with Arrays.equals
             return Arrays.equals(mErrors, that.mErrors);
         }
@@ -443,6 +816,7 @@ public class PagingRequestHelper {
             result = 31 * result + before.hashCode();
             result = 31 * result + after.hashCode();
             result = 31 * result + Arrays.hashCode(mErrors);
+            result = 31 * result + Arrays.hashCode(mNextRetryTimes);
             return result;
         }
     }
@@ -457,6 +831,164 @@ public class PagingRequestHelper {
          */
         void onStatusChange(@NonNull StatusReport report);
     }
+    /**
+     * Recorder notified of the lifecycle of the requests, to collect metrics or traces.
+     * <p>
+     * Methods are called synchronously on the thread making the transition, so they should be
+     * fast and thread safe.
+     */
+    public interface MetricsRecorder {
+        /**
+         * Called when a request starts running.
+         *
+         * @param type      The type of the request.
+         * @param requestId An id identifying the request until it completes.
+         * @param attempt   The number of times this request was already retried.
+         */
+        void onRequestStarted(@NonNull RequestType type, int requestId, int attempt);
+        /**
+         * Called when a request completes.
+         *
+         * @param type          The type of the request.
+         * @param requestId     The id given in {@link #onRequestStarted(RequestType, int, int)}.
+         * @param attempt       The number of times this request was already retried.
+         * @param durationNanos The time the request was running, in nanoseconds.
+         * @param error         The error of the request or {@code null} if it succeeded.
+         */
+        void onRequestCompleted(@NonNull RequestType type, int requestId, int attempt,
+                                long durationNanos, @Nullable Throwable error);
+        /**
+         * Called when a request is not run because another one of the same type is running.
+         *
+         * @param type The type of the request.
+         */
+        void onRequestRejected(@NonNull RequestType type);
+    }
+    /**
+     * Policy deciding if and when a failed request should be retried automatically.
+     */
+    public interface RetryPolicy {
+        /**
+         * Returns the delay before retrying a failed request.
+         *
+         * @param type    The type of the failed request.
+         * @param attempt The number of the retry to schedule, starting at 1 for the first retry.
+         * @param error   The error of the failed request.
+         * @return The delay in milliseconds before retrying, or a negative value to not retry.
+         */
+        long getRetryDelayMillis(@NonNull RequestType type, int attempt,
+                                 @NonNull Throwable error);
+    }
+    /**
+     * A {@link RetryPolicy} with an exponential backoff and a random jitter, so that many clients
+     * failing at the same time don't retry all together.
+     */
+    public static final class ExponentialBackoffRetryPolicy implements RetryPolicy {
+        private final long mInitialDelayMillis;
+        private final long mMaxDelayMillis;
+        private final double mMultiplier;
+        private final double mJitter;
+        private final int[] mMaxAttempts;
+        private ExponentialBackoffRetryPolicy(Builder builder) {
+            mInitialDelayMillis = builder.mInitialDelayMillis;
+            mMaxDelayMillis = builder.mMaxDelayMillis;
+            mMultiplier = builder.mMultiplier;
+            mJitter = builder.mJitter;
+            mMaxAttempts = builder.mMaxAttempts.clone();
+        }
+        @Override
+        public long getRetryDelayMillis(@NonNull RequestType type, int attempt,
+                                        @NonNull Throwable error) {
+            if (attempt > mMaxAttempts[type.ordinal()]) {
+                return -1;
+            }
+            double delay = Math.min(mInitialDelayMillis * Math.pow(mMultiplier, attempt - 1),
+                    mMaxDelayMillis);
+            delay -= delay * mJitter * ThreadLocalRandom.current().nextDouble();
+            return (long) delay;
+        }
+        /**
+         * Builder for {@link ExponentialBackoffRetryPolicy}.
+         */
+        public static final class Builder {
+            private long mInitialDelayMillis = 1000;
+            private long mMaxDelayMillis = 60_000;
+            private double mMultiplier = 2;
+            private double mJitter = 0.5;
+            private final int[] mMaxAttempts = {5, 5, 5};
+            /**
+             * Sets the delay before the first retry. Default to 1 second.
+             */
+            @NonNull
+            public Builder setInitialDelay(long delay, @NonNull TimeUnit unit) {
+                mInitialDelayMillis = unit.toMillis(delay);
+                return this;
+            }
+            /**
+             * Sets the maximum delay between 2 retries. Default to 1 minute.
+             */
+            @NonNull
+            public Builder setMaxDelay(long delay, @NonNull TimeUnit unit) {
+                mMaxDelayMillis = unit.toMillis(delay);
+                return this;
+            }
+            /**
+             * Sets the factor applied to the delay after each retry. Default to 2.
+             */
+            @NonNull
+            public Builder setMultiplier(double multiplier) {
+                if (multiplier < 1) {
+                    throw new IllegalArgumentException("multiplier must be >= 1");
+                }
+                mMultiplier = multiplier;
+                return this;
+            }
+            /**
+             * Sets the fraction of the delay which is randomized. Default to 0.5, meaning that
+             * the delay is randomly reduced by up to 50%.
+             */
+            @NonNull
+            public Builder setJitter(double jitter) {
+                if (jitter < 0 || jitter > 1) {
+                    throw new IllegalArgumentException("jitter must be between 0 and 1");
+                }
+                mJitter = jitter;
+                return this;
+            }
+            /**
+             * Sets the maximum number of retries for all request types. Default to 5.
+             */
+            @NonNull
+            public Builder setMaxAttempts(int maxAttempts) {
+                Arrays.fill(mMaxAttempts, maxAttempts);
+                return this;
+            }
+            /**
+             * Sets the maximum number of retries for the given request type.
+             */
+            @NonNull
+            public Builder setMaxAttempts(@NonNull RequestType type, int maxAttempts) {
+                mMaxAttempts[type.ordinal()] = maxAttempts;
+                return this;
+            }
+            @NonNull
+            public ExponentialBackoffRetryPolicy build() {
+                return new ExponentialBackoffRetryPolicy(this);
+            }
+        }
+    }
+    /**
+     * Listener interface to get notified of the result of a request started or joined with
+     * {@link #runOrJoin(RequestType, Object, Request, ResultListener)}.
+     */
+    public interface ResultListener {
+        /**
+         * Called when the request has completed.
+         *
+         * @param error The error of the request or {@code null} if it succeeded.
+         */
+        void onResult(@Nullable Throwable error);
+    }
     /**
      * Represents the status of a Request for each {@link RequestType}.
      */
@@ -496,19 +1028,79 @@ public class PagingRequestHelper {
          */
         AFTER
     }
-    class RequestQueue {
+    /**
+     * Immutable state of the requests of a {@link RequestType}.
+     */
+    static final class RequestQueue {
+        private static final ResultListener[] NO_WAITERS = new ResultListener[0];
         @NonNull
         final RequestType mRequestType;
         @Nullable
-        RequestWrapper mFailed;
+        final RequestWrapper mFailed;
         @Nullable
-        Request mRunning;
+        final Request mRunning;
         @Nullable
-        Throwable mLastError;
+        final Object mRunningKey;
         @NonNull
-        Status mStatus = Status.SUCCESS;
-        RequestQueue(@NonNull RequestType requestType) {
+        final ResultListener[] mWaiters;
+        /**
+         * The running request, if it is waiting for the initial request to complete.
+         */
+        @Nullable
+        final RequestWrapper mDeferred;
+        @Nullable
+        final Throwable mLastError;
+        @NonNull
+        final Status mStatus;
+        final long mNextRetryTime;
+        private RequestQueue(@NonNull RequestType requestType, @Nullable RequestWrapper failed,
+                             @Nullable Request running, @Nullable Object runningKey,
+                             @NonNull ResultListener[] waiters, @Nullable RequestWrapper deferred,
+                             @Nullable Throwable lastError, @NonNull Status status,
+                             long nextRetryTime) {
             mRequestType = requestType;
+            mFailed = failed;
+            mRunning = running;
+            mRunningKey = runningKey;
+            mWaiters = waiters;
+            mDeferred = deferred;
+            mLastError = lastError;
+            mStatus = status;
+            mNextRetryTime = nextRetryTime;
+        }
+        static RequestQueue idle(@NonNull RequestType requestType) {
+            return new RequestQueue(requestType, null, null, null, NO_WAITERS, null, null,
+                    Status.SUCCESS, StatusReport.NO_RETRY_SCHEDULED);
+        }
+        RequestQueue toRunning(@NonNull Request request, @Nullable Object key,
+                               @Nullable ResultListener waiter,
+                               @Nullable RequestWrapper deferred) {
+            ResultListener[] waiters = waiter == null ? NO_WAITERS : new ResultListener[]{waiter};
+            return new RequestQueue(mRequestType, null, request, key, waiters, deferred, null,
+                    Status.RUNNING, StatusReport.NO_RETRY_SCHEDULED);
+        }
+        RequestQueue withWaiter(@NonNull ResultListener waiter) {
+            ResultListener[] waiters = Arrays.copyOf(mWaiters, mWaiters.length + 1);
+            waiters[mWaiters.length] = waiter;
+            return new RequestQueue(mRequestType, mFailed, mRunning, mRunningKey, waiters,
+                    mDeferred, mLastError, mStatus, mNextRetryTime);
+        }
+        RequestQueue withoutDeferred() {
+            return new RequestQueue(mRequestType, mFailed, mRunning, mRunningKey, mWaiters,
+                    null, mLastError, mStatus, mNextRetryTime);
+        }
+        RequestQueue toFinished(@NonNull RequestWrapper wrapper, @Nullable Throwable throwable,
+                                long nextRetryTime) {
+            if (throwable == null) {
+                return new RequestQueue(mRequestType, null, null, null, NO_WAITERS, null, null,
+                        Status.SUCCESS, StatusReport.NO_RETRY_SCHEDULED);
+            }
+            return new RequestQueue(mRequestType, wrapper, null, null, NO_WAITERS, null,
+                    throwable, Status.FAILED, nextRetryTime);
+        }
+        RequestQueue withoutFailed() {
+            return new RequestQueue(mRequestType, null, mRunning, mRunningKey, mWaiters,
+                    mDeferred, mLastError, mStatus, StatusReport.NO_RETRY_SCHEDULED);
         }
     }
 }
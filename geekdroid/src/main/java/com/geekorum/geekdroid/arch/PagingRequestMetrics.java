@@ -0,0 +1,133 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.arch;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link PagingRequestHelper.MetricsRecorder} aggregating the lifecycle of the requests in
+ * counters, per {@link RequestType}.
+ * <p>
+ * Latencies are recorded in an histogram with exponential buckets: the bucket {@code i} counts
+ * the requests which took less than {@code 2^i} milliseconds, the last bucket counts all the
+ * slower requests.
+ */
+@SuppressWarnings("removal")
+public class PagingRequestMetrics implements PagingRequestHelper.MetricsRecorder {
+    /**
+     * Number of buckets of the latency histograms.
+     */
+    public static final int LATENCY_BUCKETS_COUNT = 17;
+    private static final int TYPES_COUNT = RequestType.values().length;
+
+    private final AtomicLongArray mLatencies =
+            new AtomicLongArray(TYPES_COUNT * LATENCY_BUCKETS_COUNT);
+    private final AtomicLongArray mRejected = new AtomicLongArray(TYPES_COUNT);
+    private final AtomicLongArray mRetrySucceeded = new AtomicLongArray(TYPES_COUNT);
+    private final AtomicLongArray mRetryFailed = new AtomicLongArray(TYPES_COUNT);
+
+    @Override
+    public void onRequestStarted(@NonNull RequestType type, int requestId, int attempt) {
+    }
+
+    @Override
+    public void onRequestCompleted(@NonNull RequestType type, int requestId, int attempt,
+                                   long durationNanos, @Nullable Throwable error) {
+        final int index = type.ordinal();
+        mLatencies.incrementAndGet(index * LATENCY_BUCKETS_COUNT + bucketFor(durationNanos));
+        if (attempt > 0) {
+            if (error == null) {
+                mRetrySucceeded.incrementAndGet(index);
+            } else {
+                mRetryFailed.incrementAndGet(index);
+            }
+        }
+    }
+
+    @Override
+    public void onRequestRejected(@NonNull RequestType type) {
+        mRejected.incrementAndGet(type.ordinal());
+    }
+
+    private static int bucketFor(long durationNanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        final int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, LATENCY_BUCKETS_COUNT - 1);
+    }
+
+    /**
+     * Returns the upper bound, in milliseconds, of the given bucket of the latency histograms.
+     *
+     * @param bucket The index of the bucket.
+     * @return The exclusive upper bound or {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public static long getLatencyBucketUpperBoundMillis(int bucket) {
+        if (bucket >= LATENCY_BUCKETS_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << bucket;
+    }
+
+    /**
+     * Returns the latency histogram of the completed requests of the given type.
+     *
+     * @param type The request type.
+     * @return A copy of the histogram with {@link #LATENCY_BUCKETS_COUNT} buckets.
+     */
+    @NonNull
+    public long[] getLatencyHistogram(@NonNull RequestType type) {
+        final long[] histogram = new long[LATENCY_BUCKETS_COUNT];
+        final int offset = type.ordinal() * LATENCY_BUCKETS_COUNT;
+        for (int i = 0; i < LATENCY_BUCKETS_COUNT; i++) {
+            histogram[i] = mLatencies.get(offset + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the number of requests of the given type which were not run because another one
+     * was already running.
+     */
+    public long getRejectedCount(@NonNull RequestType type) {
+        return mRejected.get(type.ordinal());
+    }
+
+    /**
+     * Returns the number of retries of requests of the given type which succeeded.
+     */
+    public long getRetrySucceededCount(@NonNull RequestType type) {
+        return mRetrySucceeded.get(type.ordinal());
+    }
+
+    /**
+     * Returns the number of retries of requests of the given type which failed.
+     */
+    public long getRetryFailedCount(@NonNull RequestType type) {
+        return mRetryFailed.get(type.ordinal());
+    }
+}
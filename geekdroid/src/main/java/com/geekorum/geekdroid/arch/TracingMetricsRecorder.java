@@ -0,0 +1,80 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.geekorum.geekdroid.arch;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.tracing.Trace;
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType;
+
+/**
+ * A {@link PagingRequestHelper.MetricsRecorder} emitting an async trace section for each
+ * request, so they are visible in system traces.
+ * <p>
+ * Events are also forwarded to an optional delegate, to record metrics at the same time.
+ */
+@SuppressWarnings("removal")
+public class TracingMetricsRecorder implements PagingRequestHelper.MetricsRecorder {
+    private static final String[] SECTION_NAMES = {
+            "PagingRequest INITIAL", "PagingRequest BEFORE", "PagingRequest AFTER"
+    };
+
+    @Nullable
+    private final PagingRequestHelper.MetricsRecorder mDelegate;
+
+    public TracingMetricsRecorder() {
+        this(null);
+    }
+
+    public TracingMetricsRecorder(@Nullable PagingRequestHelper.MetricsRecorder delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void onRequestStarted(@NonNull RequestType type, int requestId, int attempt) {
+        if (Trace.isEnabled()) {
+            Trace.beginAsyncSection(SECTION_NAMES[type.ordinal()], requestId);
+        }
+        if (mDelegate != null) {
+            mDelegate.onRequestStarted(type, requestId, attempt);
+        }
+    }
+
+    @Override
+    public void onRequestCompleted(@NonNull RequestType type, int requestId, int attempt,
+                                   long durationNanos, @Nullable Throwable error) {
+        if (Trace.isEnabled()) {
+            Trace.endAsyncSection(SECTION_NAMES[type.ordinal()], requestId);
+        }
+        if (mDelegate != null) {
+            mDelegate.onRequestCompleted(type, requestId, attempt, durationNanos, error);
+        }
+    }
+
+    @Override
+    public void onRequestRejected(@NonNull RequestType type) {
+        if (mDelegate != null) {
+            mDelegate.onRequestRejected(type);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status
+import com.geekorum.geekdroid.arch.PagingRequestHelper.StatusReport
+import com.google.common.truth.Truth.assertThat
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Test
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class ConflatingStatusListenerTest {
+
+    private val delivered = mutableListOf<StatusReport>()
+
+    private fun report(after: Status = Status.RUNNING) =
+        StatusReport(Status.SUCCESS, Status.SUCCESS, after, arrayOfNulls(3), LongArray(3) { StatusReport.NO_RETRY_SCHEDULED })
+
+    @Test
+    fun testThatReportsReceivedBeforeTheDeliveryAreConflated() {
+        val pendingDeliveries = mutableListOf<Runnable>()
+        val listener = ConflatingStatusListener({ delivered += it }) { pendingDeliveries += it }
+        val reports = List(3) { report() }
+
+        reports.forEach { listener.onStatusChange(it) }
+        assertThat(pendingDeliveries).hasSize(1)
+        assertThat(delivered).isEmpty()
+
+        pendingDeliveries.removeAt(0).run()
+        assertThat(delivered).containsExactly(reports.last())
+    }
+
+    @Test
+    fun testThatWindowStartsAtTheFirstReport() {
+        val scheduled = mutableListOf<Triple<Runnable, Long, TimeUnit>>()
+        val scheduler = mockk<ScheduledExecutorService> {
+            every { schedule(any<Runnable>(), any(), any()) } answers {
+                scheduled += Triple(firstArg(), secondArg(), thirdArg())
+                mockk<ScheduledFuture<*>>()
+            }
+        }
+        val listener = ConflatingStatusListener.withWindow({ delivered += it }, scheduler,
+            100, TimeUnit.MILLISECONDS) { it.run() }
+        val first = report(Status.RUNNING)
+        val second = report(Status.FAILED)
+
+        listener.onStatusChange(first)
+        listener.onStatusChange(second)
+        assertThat(scheduled).hasSize(1)
+        assertThat(scheduled.single().second).isEqualTo(100L)
+        assertThat(scheduled.single().third).isEqualTo(TimeUnit.MILLISECONDS)
+        assertThat(delivered).isEmpty()
+
+        // end of the window
+        scheduled.removeAt(0).first.run()
+        assertThat(delivered).containsExactly(second)
+
+        // a new report opens a new window
+        val third = report(Status.SUCCESS)
+        listener.onStatusChange(third)
+        assertThat(scheduled).hasSize(1)
+        scheduled.removeAt(0).first.run()
+        assertThat(delivered).containsExactly(second, third).inOrder()
+    }
+
+    @Test
+    fun testThatReportsAreDeliveredInOrderWithMultiThreadedExecutor() {
+        val executor = Executors.newFixedThreadPool(4)
+        val reports = List(20_000) { report() }
+        val indexes = IdentityHashMap<StatusReport, Int>().apply {
+            reports.forEachIndexed { index, report -> put(report, index) }
+        }
+        val deliveredIndexes = Collections.synchronizedList(mutableListOf<Int>())
+        val concurrentCalls = AtomicInteger()
+        val overlapped = AtomicBoolean()
+        val lastDelivered = CountDownLatch(1)
+        val listener = ConflatingStatusListener({ report ->
+            if (concurrentCalls.incrementAndGet() > 1) {
+                overlapped.set(true)
+            }
+            deliveredIndexes += indexes.getValue(report)
+            if (report === reports.last()) {
+                lastDelivered.countDown()
+            }
+            concurrentCalls.decrementAndGet()
+        }, executor)
+
+        try {
+            reports.forEach { listener.onStatusChange(it) }
+            assertThat(lastDelivered.await(5, TimeUnit.SECONDS)).isTrue()
+        } finally {
+            executor.shutdownNow()
+        }
+
+        assertThat(overlapped.get()).isFalse()
+        assertThat(deliveredIndexes).isStrictlyOrdered()
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import java.io.IOException
+import kotlin.test.Test
+
+class CoroutinePagingRequestHelperTest {
+
+    @Test
+    fun testThatRequestIsCancelledWithItsType() = runTest {
+        val helper = CoroutinePagingRequestHelper(backgroundScope)
+        val job = helper.runIfNotRunning(RequestType.AFTER) { CompletableDeferred<Unit>().await() }
+        runCurrent()
+        assertThat(job).isNotNull()
+        assertThat(helper.status.value.after).isEqualTo(Status.RUNNING)
+        assertThat(helper.runIfNotRunning(RequestType.AFTER) { }).isNull()
+
+        helper.cancel(RequestType.AFTER)
+        runCurrent()
+        assertThat(job!!.isCancelled).isTrue()
+        assertThat(helper.status.value.after).isEqualTo(Status.SUCCESS)
+    }
+
+    @Test
+    fun testThatFailedRequestCanBeRetried() = runTest {
+        val helper = CoroutinePagingRequestHelper(backgroundScope)
+        var attempts = 0
+        helper.runIfNotRunning(RequestType.INITIAL) {
+            attempts++
+            if (attempts == 1) throw IOException()
+        }
+        runCurrent()
+        assertThat(helper.status.value.initial).isEqualTo(Status.FAILED)
+        assertThat(helper.status.value.getErrorFor(RequestType.INITIAL)).isInstanceOf(IOException::class.java)
+
+        assertThat(helper.retryAllFailed()).isTrue()
+        runCurrent()
+        assertThat(attempts).isEqualTo(2)
+        assertThat(helper.status.value.initial).isEqualTo(Status.SUCCESS)
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.ExponentialBackoffRetryPolicy
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+class ExponentialBackoffRetryPolicyTest {
+
+    private val error = IOException()
+
+    @Test
+    fun testThatDelayGrowsUntilTheMaxDelay() {
+        val policy = ExponentialBackoffRetryPolicy.Builder()
+            .setJitter(0.0)
+            .setMaxAttempts(10)
+            .build()
+
+        val delays = (1..8).map { policy.getRetryDelayMillis(RequestType.AFTER, it, error) }
+
+        assertThat(delays).containsExactly(1000L, 2000L, 4000L, 8000L, 16_000L, 32_000L, 60_000L, 60_000L)
+            .inOrder()
+    }
+
+    @Test
+    fun testThatBuilderSetsTheDelays() {
+        val policy = ExponentialBackoffRetryPolicy.Builder()
+            .setInitialDelay(100, TimeUnit.MILLISECONDS)
+            .setMaxDelay(1, TimeUnit.SECONDS)
+            .setMultiplier(3.0)
+            .setJitter(0.0)
+            .build()
+
+        val delays = (1..4).map { policy.getRetryDelayMillis(RequestType.INITIAL, it, error) }
+
+        assertThat(delays).containsExactly(100L, 300L, 900L, 1000L).inOrder()
+    }
+
+    @Test
+    fun testThatJitterReducesTheDelay() {
+        val policy = ExponentialBackoffRetryPolicy.Builder()
+            .setJitter(0.5)
+            .build()
+
+        repeat(100) {
+            val delay = policy.getRetryDelayMillis(RequestType.AFTER, 2, error)
+            assertThat(delay).isAtLeast(1000L)
+            assertThat(delay).isAtMost(2000L)
+        }
+    }
+
+    @Test
+    fun testThatMaxAttemptsIsPerRequestType() {
+        val policy = ExponentialBackoffRetryPolicy.Builder()
+            .setMaxAttempts(3)
+            .setMaxAttempts(RequestType.INITIAL, 1)
+            .build()
+
+        assertThat(policy.getRetryDelayMillis(RequestType.INITIAL, 1, error)).isAtLeast(0L)
+        assertThat(policy.getRetryDelayMillis(RequestType.INITIAL, 2, error)).isLessThan(0L)
+        assertThat(policy.getRetryDelayMillis(RequestType.AFTER, 3, error)).isAtLeast(0L)
+        assertThat(policy.getRetryDelayMillis(RequestType.AFTER, 4, error)).isLessThan(0L)
+        assertThat(policy.getRetryDelayMillis(RequestType.BEFORE, 4, error)).isLessThan(0L)
+    }
+
+    @Test
+    fun testThatDefaultMaxAttemptsIsFive() {
+        val policy = ExponentialBackoffRetryPolicy.Builder().build()
+
+        assertThat(policy.getRetryDelayMillis(RequestType.BEFORE, 5, error)).isAtLeast(0L)
+        assertThat(policy.getRetryDelayMillis(RequestType.BEFORE, 6, error)).isLessThan(0L)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testThatMultiplierBelowOneIsRejected() {
+        ExponentialBackoffRetryPolicy.Builder().setMultiplier(0.5)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun testThatJitterAboveOneIsRejected() {
+        ExponentialBackoffRetryPolicy.Builder().setJitter(1.5)
+    }
+}
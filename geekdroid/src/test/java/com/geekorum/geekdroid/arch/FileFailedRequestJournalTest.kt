@@ -0,0 +1,181 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RestoredFailureException
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Executor
+
+@RunWith(AndroidJUnit4::class)
+class FileFailedRequestJournalTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    lateinit var file: File
+    private val directExecutor = Executor { it.run() }
+
+    @Before
+    fun setUp() {
+        file = File(temporaryFolder.root, "failed_requests")
+    }
+
+    private fun createJournal(executor: Executor = directExecutor) = FileFailedRequestJournal(file, executor)
+
+    @Test
+    fun testThatFailuresAreReadByTheNextProcess() {
+        createJournal().apply {
+            recordFailure(RequestType.AFTER, "item-1")
+            recordFailure(RequestType.BEFORE, "item-0")
+            recordFailure(RequestType.AFTER, "item-2")
+            clear(RequestType.BEFORE)
+        }
+
+        assertThat(createJournal().readFailures()).containsExactly(RequestType.AFTER, "item-2")
+    }
+
+    @Test
+    fun testThatTruncatedRecordIsIgnoredAndRemoved() {
+        createJournal().recordFailure(RequestType.AFTER, "item-1")
+        // the process died while writing a record
+        file.appendBytes(byteArrayOf(1, RequestType.BEFORE.ordinal.toByte(), 0))
+
+        val journal = createJournal()
+        assertThat(journal.readFailures()).containsExactly(RequestType.AFTER, "item-1")
+        journal.recordFailure(RequestType.BEFORE, "item-0")
+
+        assertThat(createJournal().readFailures())
+            .containsExactly(RequestType.AFTER, "item-1", RequestType.BEFORE, "item-0")
+    }
+
+    @Test
+    fun testThatJournalIsCompactedWhenRead() {
+        createJournal().apply {
+            repeat(10) {
+                recordFailure(RequestType.AFTER, "item-$it")
+                clear(RequestType.AFTER)
+            }
+            recordFailure(RequestType.INITIAL, "initial")
+        }
+
+        assertThat(createJournal().readFailures()).containsExactly(RequestType.INITIAL, "initial")
+        // a single record: type, request type, length and descriptor
+        assertThat(file.length()).isEqualTo(4L + "initial".length)
+    }
+
+    @Test
+    fun testThatClearBeforeReadingRemovesFailureOfPreviousProcess() {
+        createJournal().recordFailure(RequestType.AFTER, "item-1")
+
+        // the request succeeds in the next process before the failures are restored
+        createJournal().clear(RequestType.AFTER)
+
+        assertThat(createJournal().readFailures()).isEmpty()
+    }
+
+    @Test
+    fun testThatRecordsAreWrittenInTheOrderOfTheStateChanges() {
+        val tasks = mutableListOf<Runnable>()
+        val journal = createJournal { tasks += it }
+        journal.recordFailure(RequestType.AFTER, "item-1")
+        journal.clear(RequestType.AFTER)
+        journal.recordFailure(RequestType.BEFORE, "item-0")
+        // a multi-threaded executor may run the writes in any order
+        tasks.reversed().forEach { it.run() }
+
+        assertThat(createJournal().readFailures()).containsExactly(RequestType.BEFORE, "item-0")
+    }
+
+    @Test
+    fun testThatReadFailuresKeepsTheChangesNotWrittenYet() {
+        val tasks = mutableListOf<Runnable>()
+        createJournal().recordFailure(RequestType.AFTER, "item-1")
+        val journal = createJournal { tasks += it }
+        journal.recordFailure(RequestType.BEFORE, "item-0")
+
+        assertThat(journal.readFailures())
+            .containsExactly(RequestType.AFTER, "item-1", RequestType.BEFORE, "item-0")
+        tasks.forEach { it.run() }
+        assertThat(createJournal().readFailures())
+            .containsExactly(RequestType.AFTER, "item-1", RequestType.BEFORE, "item-0")
+    }
+
+    @Test
+    fun testThatFailedRequestsAreRestoredByPagingRequestHelper() {
+        val helper = PagingRequestHelper { it.run() }
+        helper.setFailedRequestJournal(createJournal())
+        helper.runIfNotRunning(RequestType.AFTER, TestJournaledRequest("item-1") { it.recordFailure(IOException()) })
+        helper.runIfNotRunning(RequestType.BEFORE, TestJournaledRequest("item-0") { it.recordFailure(IOException()) })
+
+        val restoredHelper = PagingRequestHelper { it.run() }
+        restoredHelper.setFailedRequestJournal(createJournal())
+        val retried = mutableListOf<String>()
+        val restored = restoredHelper.restoreFailedRequests { type, descriptor ->
+            // the BEFORE request is not needed anymore
+            if (type == RequestType.BEFORE) null else TestJournaledRequest(descriptor) {
+                retried += descriptor
+                it.recordSuccess()
+            }
+        }
+        assertThat(restored).isEqualTo(1)
+
+        val reports = mutableListOf<PagingRequestHelper.StatusReport>()
+        restoredHelper.addListener { reports += it }
+        assertThat(restoredHelper.retryAllFailed()).isTrue()
+        assertThat(retried).containsExactly("item-1")
+        assertThat(reports.last().after).isEqualTo(Status.SUCCESS)
+        assertThat(createJournal().readFailures()).isEmpty()
+    }
+
+    @Test
+    fun testThatRestoredRequestHasARestoredFailure() {
+        createJournal().recordFailure(RequestType.AFTER, "item-1")
+        val helper = PagingRequestHelper { }
+        helper.setFailedRequestJournal(createJournal())
+        val reports = mutableListOf<PagingRequestHelper.StatusReport>()
+        helper.addListener { reports += it }
+
+        helper.restoreFailedRequests { _, descriptor -> TestJournaledRequest(descriptor) { } }
+        assertThat(reports.last().after).isEqualTo(Status.FAILED)
+        assertThat(reports.last().getErrorFor(RequestType.AFTER)).isInstanceOf(RestoredFailureException::class.java)
+    }
+
+    private class TestJournaledRequest(
+        private val descriptor: String,
+        private val block: (PagingRequestHelper.Request.Callback) -> Unit,
+    ) : PagingRequestHelper.JournaledRequest {
+        override fun getDescriptor(): String = descriptor
+
+        override fun run(callback: PagingRequestHelper.Request.Callback) = block(callback)
+    }
+}
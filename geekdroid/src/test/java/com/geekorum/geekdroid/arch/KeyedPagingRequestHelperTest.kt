@@ -0,0 +1,113 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+
+class KeyedPagingRequestHelperTest {
+
+    lateinit var helper: KeyedPagingRequestHelper<String>
+    val changes = mutableListOf<Pair<String, Status>>()
+    val evictions = mutableListOf<String>()
+
+    @Before
+    fun setUp() {
+        helper = KeyedPagingRequestHelper({ it.run() }, 2)
+        helper.addListener(object : KeyedPagingRequestHelper.Listener<String> {
+            override fun onStatusChange(key: String, status: Status, error: Throwable?) {
+                changes += key to status
+            }
+
+            override fun onFailedKeyEvicted(key: String, error: Throwable?) {
+                evictions += key
+            }
+        })
+    }
+
+    @Test
+    fun testThatKeysAreTrackedIndependently() {
+        var callback: KeyedPagingRequestHelper.Request.Callback? = null
+        assertThat(helper.runIfNotRunning("section-1") { callback = it }).isTrue()
+        assertThat(helper.runIfNotRunning("section-1") { }).isFalse()
+        assertThat(helper.runIfNotRunning("section-2") { it.recordSuccess() }).isTrue()
+
+        callback!!.recordSuccess()
+        assertThat(changes).containsExactly(
+            "section-1" to Status.RUNNING,
+            "section-2" to Status.RUNNING,
+            "section-2" to Status.SUCCESS,
+            "section-1" to Status.SUCCESS,
+        ).inOrder()
+    }
+
+    @Test
+    fun testThatOldestFailedKeysAreEvicted() {
+        listOf("a", "b", "c").forEach { key ->
+            helper.runIfNotRunning(key) { it.recordFailure(IOException()) }
+        }
+        assertThat(helper.getStatus("a")).isEqualTo(Status.SUCCESS)
+        assertThat(helper.getStatus("b")).isEqualTo(Status.FAILED)
+        assertThat(helper.getStatus("c")).isEqualTo(Status.FAILED)
+        // the eviction is not reported as a success
+        assertThat(evictions).containsExactly("a")
+        assertThat(changes).doesNotContain("a" to Status.SUCCESS)
+
+        assertThat(helper.retryAllFailed()).isTrue()
+        assertThat(changes.count { it == "a" to Status.RUNNING }).isEqualTo(1)
+        assertThat(changes.count { it == "b" to Status.RUNNING }).isEqualTo(2)
+    }
+
+    @Test
+    fun testThatKeysSucceedingAfterAFailureAreNotCountedAsFailed() {
+        helper.runIfNotRunning("a") { it.recordFailure(IOException()) }
+        helper.runIfNotRunning("b") { it.recordFailure(IOException()) }
+        helper.runIfNotRunning("b") { it.recordSuccess() }
+        helper.runIfNotRunning("c") { it.recordFailure(IOException()) }
+
+        // only 2 requests are failed, none is evicted
+        assertThat(evictions).isEmpty()
+        assertThat(helper.getStatus("a")).isEqualTo(Status.FAILED)
+        assertThat(helper.getStatus("b")).isEqualTo(Status.SUCCESS)
+        assertThat(helper.getStatus("c")).isEqualTo(Status.FAILED)
+
+        assertThat(helper.retryAllFailed()).isTrue()
+        assertThat(changes.count { it == "a" to Status.RUNNING }).isEqualTo(2)
+        assertThat(changes.count { it == "b" to Status.RUNNING }).isEqualTo(2)
+        assertThat(changes.count { it == "c" to Status.RUNNING }).isEqualTo(2)
+    }
+
+    @Test
+    fun testThatKeyFailingAgainIsTheNewestFailure() {
+        helper.runIfNotRunning("a") { it.recordFailure(IOException()) }
+        helper.runIfNotRunning("b") { it.recordFailure(IOException()) }
+        helper.runIfNotRunning("a") { it.recordFailure(IOException()) }
+        helper.runIfNotRunning("c") { it.recordFailure(IOException()) }
+
+        assertThat(evictions).containsExactly("b")
+        assertThat(helper.getStatus("a")).isEqualTo(Status.FAILED)
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType
+import com.geekorum.geekdroid.arch.PagingRequestHelper.Status
+import com.geekorum.geekdroid.arch.PagingRequestHelper.StatusReport
+import com.google.common.truth.Truth.assertThat
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+class PagingRequestHelperTest {
+
+    lateinit var helper: PagingRequestHelper
+    val reports = mutableListOf<StatusReport>()
+    val pendingRetries = mutableListOf<Runnable>()
+
+    @Before
+    fun setUp() {
+        helper = PagingRequestHelper { pendingRetries += it }
+        helper.addListener { reports += it }
+    }
+
+    @Test
+    fun testThatRunIfNotRunningRejectsConcurrentRequestOfSameType() {
+        var callback: PagingRequestHelper.Request.Callback? = null
+        assertThat(helper.runIfNotRunning(RequestType.AFTER) { callback = it }).isTrue()
+        assertThat(helper.runIfNotRunning(RequestType.AFTER) { }).isFalse()
+        assertThat(helper.runIfNotRunning(RequestType.BEFORE) { it.recordSuccess() }).isTrue()
+
+        callback!!.recordSuccess()
+        assertThat(helper.runIfNotRunning(RequestType.AFTER) { it.recordSuccess() }).isTrue()
+    }
+
+    @Test
+    fun testThatReportsAreDispatchedOnEachTransition() {
+        var callback: PagingRequestHelper.Request.Callback? = null
+        helper.runIfNotRunning(RequestType.INITIAL) { callback = it }
+        assertThat(reports).hasSize(1)
+        assertThat(reports.last().initial).isEqualTo(Status.RUNNING)
+
+        val error = IOException()
+        callback!!.recordFailure(error)
+        assertThat(reports).hasSize(2)
+        assertThat(reports.last().initial).isEqualTo(Status.FAILED)
+        assertThat(reports.last().getErrorFor(RequestType.INITIAL)).isSameInstanceAs(error)
+    }
+
+    @Test
+    fun testThatUnchangedStateIsNotDispatchedAgain() {
+        helper.runIfNotRunning(RequestType.AFTER) { it.recordFailure(IOException()) }
+        assertThat(reports).hasSize(2)
+
+        // only clears the failed request, status does not change until the retry runs
+        assertThat(helper.retryAllFailed()).isTrue()
+        assertThat(reports).hasSize(2)
+        assertThat(helper.retryAllFailed()).isFalse()
+
+        pendingRetries.single().run()
+        assertThat(reports).hasSize(4)
+        assertThat(reports.last().after).isEqualTo(Status.FAILED)
+    }
+
+    @Test
+    fun testThatRunOrJoinCoalescesRequestsWithSameKey() {
+        var callback: PagingRequestHelper.Request.Callback? = null
+        var runs = 0
+        val results = mutableListOf<Throwable?>()
+        val request = PagingRequestHelper.Request { runs++; callback = it }
+
+        assertThat(helper.runOrJoin(RequestType.AFTER, "item-1", request) { results += it }).isTrue()
+        assertThat(helper.runOrJoin(RequestType.AFTER, "item-1", request) { results += it }).isTrue()
+        assertThat(helper.runOrJoin(RequestType.AFTER, "item-2", request) { results += it }).isFalse()
+        assertThat(runs).isEqualTo(1)
+
+        callback!!.recordSuccess()
+        assertThat(results).containsExactly(null, null)
+    }
+
+    @Test
+    fun testThatBoundaryRequestsAreDeferredUntilInitialCompletes() {
+        helper.setDeferBoundaryRequests(true)
+        val runOrder = mutableListOf<RequestType>()
+        var initialCallback: PagingRequestHelper.Request.Callback? = null
+        helper.runIfNotRunning(RequestType.INITIAL) { initialCallback = it }
+
+        assertThat(helper.runIfNotRunning(RequestType.BEFORE) { runOrder += RequestType.BEFORE }).isTrue()
+        assertThat(helper.runIfNotRunning(RequestType.AFTER) { runOrder += RequestType.AFTER }).isTrue()
+        assertThat(runOrder).isEmpty()
+        assertThat(reports.last().hasRunning()).isTrue()
+
+        initialCallback!!.recordSuccess()
+        assertThat(runOrder).containsExactly(RequestType.AFTER, RequestType.BEFORE).inOrder()
+    }
+
+    @Test
+    fun testThatFailedRequestIsRetriedAccordingToRetryPolicy() {
+        val scheduler = Executors.newSingleThreadScheduledExecutor()
+        // the retries run on the scheduler thread
+        val attempts = CopyOnWriteArrayList<Int>()
+        val retryReports = CopyOnWriteArrayList<StatusReport>()
+        val policy = PagingRequestHelper.RetryPolicy { _, attempt, _ ->
+            attempts += attempt
+            if (attempt <= 2) 10 else -1
+        }
+        val done = CountDownLatch(1)
+        helper = PagingRequestHelper({ it.run() }, scheduler, policy)
+        helper.addListener {
+            retryReports += it
+            if (attempts.size == 3 && it.after == Status.FAILED
+                && it.getNextRetryTimeFor(RequestType.AFTER) == StatusReport.NO_RETRY_SCHEDULED) {
+                done.countDown()
+            }
+        }
+
+        try {
+            helper.runIfNotRunning(RequestType.AFTER) { it.recordFailure(IOException()) }
+            assertThat(retryReports.first { it.after == Status.FAILED }.getNextRetryTimeFor(RequestType.AFTER))
+                .isNotEqualTo(StatusReport.NO_RETRY_SCHEDULED)
+
+            assertThat(done.await(5, TimeUnit.SECONDS)).isTrue()
+            assertThat(attempts).containsExactly(1, 2, 3).inOrder()
+        } finally {
+            scheduler.shutdown()
+        }
+    }
+
+    private fun createHelperWithScheduledRetries(scheduledRetries: MutableList<Runnable>) {
+        val scheduler = mockk<ScheduledExecutorService> {
+            every { schedule(any<Runnable>(), any(), any()) } answers {
+                scheduledRetries += firstArg<Runnable>()
+                mockk<ScheduledFuture<*>>()
+            }
+        }
+        helper = PagingRequestHelper({ pendingRetries += it }, scheduler) { _, _, _ -> 1000 }
+        helper.addListener { reports += it }
+    }
+
+    @Test
+    fun testThatScheduledRetryDispatchesTheCancelledRetryTime() {
+        val scheduledRetries = mutableListOf<Runnable>()
+        createHelperWithScheduledRetries(scheduledRetries)
+        helper.runIfNotRunning(RequestType.AFTER) { it.recordFailure(IOException()) }
+        assertThat(reports.last().getNextRetryTimeFor(RequestType.AFTER))
+            .isNotEqualTo(StatusReport.NO_RETRY_SCHEDULED)
+
+        scheduledRetries.single().run()
+        assertThat(reports.last().after).isEqualTo(Status.FAILED)
+        assertThat(reports.last().getNextRetryTimeFor(RequestType.AFTER))
+            .isEqualTo(StatusReport.NO_RETRY_SCHEDULED)
+        assertThat(pendingRetries).hasSize(1)
+    }
+
+    @Test
+    fun testThatRetryAllFailedDispatchesTheCancelledRetryTime() {
+        val scheduledRetries = mutableListOf<Runnable>()
+        createHelperWithScheduledRetries(scheduledRetries)
+        helper.runIfNotRunning(RequestType.AFTER) { it.recordFailure(IOException()) }
+
+        assertThat(helper.retryAllFailed()).isTrue()
+        assertThat(reports.last().getNextRetryTimeFor(RequestType.AFTER))
+            .isEqualTo(StatusReport.NO_RETRY_SCHEDULED)
+        assertThat(pendingRetries).hasSize(1)
+
+        // the scheduled retry doesn't run the request again
+        scheduledRetries.single().run()
+        assertThat(pendingRetries).hasSize(1)
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Geekdroid is a utility library for development on the Android
+ * Platform.
+ *
+ * Copyright (C) 2017-2025 by Frederic-Charles Barthelery.
+ *
+ * This file is part of Geekdroid.
+ *
+ * Geekdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Geekdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Geekdroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+@file:Suppress("DEPRECATION")
+package com.geekorum.geekdroid.arch
+
+import com.geekorum.geekdroid.arch.PagingRequestHelper.RequestType
+import com.geekorum.geekdroid.arch.PagingRequestMetrics.LATENCY_BUCKETS_COUNT
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+class PagingRequestMetricsTest {
+
+    private val metrics = PagingRequestMetrics()
+
+    private fun bucketOf(durationNanos: Long): Int {
+        val metrics = PagingRequestMetrics()
+        metrics.onRequestCompleted(RequestType.AFTER, 0, 0, durationNanos, null)
+        val histogram = metrics.getLatencyHistogram(RequestType.AFTER)
+        assertThat(histogram.sum()).isEqualTo(1L)
+        return histogram.indexOfFirst { it == 1L }
+    }
+
+    private fun millis(millis: Long) = TimeUnit.MILLISECONDS.toNanos(millis)
+
+    @Test
+    fun testThatLatenciesAreCountedInTheirBucket() {
+        assertThat(bucketOf(0)).isEqualTo(0)
+        assertThat(bucketOf(millis(1) - 1)).isEqualTo(0)
+        assertThat(bucketOf(millis(1))).isEqualTo(1)
+        assertThat(bucketOf(millis(2) - 1)).isEqualTo(1)
+        assertThat(bucketOf(millis(2))).isEqualTo(2)
+        assertThat(bucketOf(millis(3))).isEqualTo(2)
+        assertThat(bucketOf(millis(4))).isEqualTo(3)
+        assertThat(bucketOf(millis(1000))).isEqualTo(10)
+        assertThat(bucketOf(millis(1024))).isEqualTo(11)
+    }
+
+    @Test
+    fun testThatBucketsMatchTheirUpperBounds() {
+        for (bucket in 0 until LATENCY_BUCKETS_COUNT - 1) {
+            val upperBound = PagingRequestMetrics.getLatencyBucketUpperBoundMillis(bucket)
+            assertThat(bucketOf(millis(upperBound) - 1)).isEqualTo(bucket)
+            assertThat(bucketOf(millis(upperBound))).isEqualTo(bucket + 1)
+        }
+    }
+
+    @Test
+    fun testThatLastBucketCountsAllTheSlowerRequests() {
+        val lastBucket = LATENCY_BUCKETS_COUNT - 1
+        assertThat(PagingRequestMetrics.getLatencyBucketUpperBoundMillis(lastBucket)).isEqualTo(Long.MAX_VALUE)
+        assertThat(bucketOf(millis(1L shl lastBucket))).isEqualTo(lastBucket)
+        assertThat(bucketOf(TimeUnit.HOURS.toNanos(1))).isEqualTo(lastBucket)
+        assertThat(bucketOf(Long.MAX_VALUE)).isEqualTo(lastBucket)
+    }
+
+    @Test
+    fun testThatHistogramsArePerRequestType() {
+        metrics.onRequestCompleted(RequestType.INITIAL, 0, 0, millis(5), null)
+        metrics.onRequestCompleted(RequestType.AFTER, 1, 0, millis(5), null)
+        metrics.onRequestCompleted(RequestType.AFTER, 2, 0, millis(5), IOException())
+
+        assertThat(metrics.getLatencyHistogram(RequestType.INITIAL)[3]).isEqualTo(1L)
+        assertThat(metrics.getLatencyHistogram(RequestType.AFTER)[3]).isEqualTo(2L)
+        assertThat(metrics.getLatencyHistogram(RequestType.BEFORE).sum()).isEqualTo(0L)
+        assertThat(metrics.getLatencyHistogram(RequestType.AFTER)).hasLength(LATENCY_BUCKETS_COUNT)
+    }
+
+    @Test
+    fun testThatRetriesAndRejectionsAreCounted() {
+        metrics.onRequestCompleted(RequestType.AFTER, 0, 0, millis(1), IOException())
+        metrics.onRequestCompleted(RequestType.AFTER, 0, 1, millis(1), IOException())
+        metrics.onRequestCompleted(RequestType.AFTER, 0, 2, millis(1), null)
+        metrics.onRequestRejected(RequestType.AFTER)
+        metrics.onRequestRejected(RequestType.AFTER)
+
+        assertThat(metrics.getRetryFailedCount(RequestType.AFTER)).isEqualTo(1L)
+        assertThat(metrics.getRetrySucceededCount(RequestType.AFTER)).isEqualTo(1L)
+        assertThat(metrics.getRejectedCount(RequestType.AFTER)).isEqualTo(2L)
+        assertThat(metrics.getRejectedCount(RequestType.BEFORE)).isEqualTo(0L)
+    }
+}
@@ -35,3 +35,5 @@ plugins {
 rootProject.name = "geekdroid-parent"
 include(":geekdroid")
 include(":geekdroid-firebase")
+include(":geekdroid-firebase-codegen")
+include(":geekdroid-benchmark")